@@ -0,0 +1,22 @@
+package engine;
+
+import static engine.Rasterizer.*;
+
+import engine.math.Color;
+
+// Blending as a switch rather than a call through an object per function, so the pixel loops never make a virtual call
+final class Blender {
+	private Blender() {}
+	
+	public static int blend(int function, int destination, int source) {
+		switch (function) {
+			case GL_FUNC_ADD: 				return Color.addARGB(destination, source);
+			case GL_FUNC_SUBTRACT: 			return Color.subtractARGB(destination, source);
+			case GL_FUNC_REVERSE_SUBTRACT: 	return Color.reverseSubtractARGB(destination, source);
+			case GL_MIN: 					return Color.minARGB(destination, source);
+			case GL_MAX: 					return Color.maxARGB(destination, source);
+		}
+		
+		return source;
+	}
+}
@@ -0,0 +1,181 @@
+package engine;
+
+import java.util.List;
+
+import engine.math.Frustum;
+import engine.math.Vector3;
+import engine.models.Mesh;
+
+// Binary tree of boxes over a list of meshes, one mesh per leaf. Nodes are stored in flat arrays, the root is node 0
+final class BoundingVolumeHierarchy {
+	private int numnodes;
+	private float[] bounds = new float[0]; // Min x, y, z then max x, y, z of each node
+	private int[] 
+	left = new int[0], // First child, or -1 for leaves
+	right = new int[0],
+	parent = new int[0],
+	meshindex = new int[0], // Of leaves
+	leafofmesh = new int[0];
+	
+	// Scratch used while building
+	private int[] order = new int[0];
+	private float[] centres = new float[0];
+	private Vector3 min = new Vector3(), max = new Vector3();
+	
+	public BoundingVolumeHierarchy() {}
+	
+	public void build(List<Mesh> meshes) {
+		int nummeshes = meshes.size();
+		int capacity = Math.max(nummeshes * 2 - 1, 0);
+		if (left.length < capacity) {
+			bounds = new float[capacity * 6];
+			left = new int[capacity];
+			right = new int[capacity];
+			parent = new int[capacity];
+			meshindex = new int[capacity];
+		}
+		if (leafofmesh.length < nummeshes) {
+			leafofmesh = new int[nummeshes];
+			order = new int[nummeshes];
+			centres = new float[nummeshes * 3];
+		}
+		
+		for (int i = 0; i < nummeshes; i++) {
+			Mesh mesh = meshes.get(i);
+			order[i] = i;
+			centres[i*3] 	 = (mesh.worldboundsmin.x + mesh.worldboundsmax.x) / 2;
+			centres[i*3 + 1] = (mesh.worldboundsmin.y + mesh.worldboundsmax.y) / 2;
+			centres[i*3 + 2] = (mesh.worldboundsmin.z + mesh.worldboundsmax.z) / 2;
+		}
+		
+		numnodes = 0;
+		if (nummeshes != 0)
+			build(meshes, 0, nummeshes, -1);
+	}
+	
+	// Moves a mesh's leaf to its current bounds, then grows or shrinks the nodes above it to fit
+	public void refit(Mesh mesh, int index) {
+		int node = leafofmesh[index];
+		setBounds(node, mesh.worldboundsmin, mesh.worldboundsmax);
+		for (node = parent[node]; node != -1; node = parent[node])
+			fitToChildren(node);
+	}
+	
+	// Appends the index of every mesh whose box touches the frustum. Returns how many there are
+	public int collect(Frustum frustum, int[] out) {
+		if (numnodes == 0)
+			return 0;
+		
+		return collect(0, frustum, out, 0, false);
+	}
+	
+	public int size() {
+		return numnodes;
+	}
+	
+	private int collect(int node, Frustum frustum, int[] out, int count, boolean inside) {
+		if (!inside) {
+			getBounds(node, min, max);
+			if (!frustum.intersectsBox(min, max))
+				return count;
+			inside = frustum.containsBox(min, max); // Nothing below needs testing
+		}
+		
+		if (left[node] == -1) {
+			out[count++] = meshindex[node];
+			return count;
+		}
+		
+		count = collect(left[node], frustum, out, count, inside);
+		return collect(right[node], frustum, out, count, inside);
+	}
+	
+	// Splits the meshes between first and last in half along the longest axis of their centres
+	private int build(List<Mesh> meshes, int first, int last, int parentnode) {
+		int node = numnodes++;
+		parent[node] = parentnode;
+		
+		if (last - first == 1) {
+			Mesh mesh = meshes.get(order[first]);
+			left[node] = right[node] = -1;
+			meshindex[node] = order[first];
+			leafofmesh[order[first]] = node;
+			setBounds(node, mesh.worldboundsmin, mesh.worldboundsmax);
+			return node;
+		}
+		
+		float 
+		minx = Float.MAX_VALUE, miny = Float.MAX_VALUE, minz = Float.MAX_VALUE,
+		maxx = -Float.MAX_VALUE, maxy = -Float.MAX_VALUE, maxz = -Float.MAX_VALUE;
+		for (int i = first; i < last; i++) {
+			int c = order[i] * 3;
+			minx = Math.min(minx, centres[c]); 	 maxx = Math.max(maxx, centres[c]);
+			miny = Math.min(miny, centres[c+1]); maxy = Math.max(maxy, centres[c+1]);
+			minz = Math.min(minz, centres[c+2]); maxz = Math.max(maxz, centres[c+2]);
+		}
+		int axis = 0;
+		if (maxy - miny > maxx - minx)
+			axis = 1;
+		if (maxz - minz > Math.max(maxx - minx, maxy - miny))
+			axis = 2;
+		
+		int middle = (first + last) >>> 1;
+		select(first, last - 1, middle, axis);
+		
+		left[node] = build(meshes, first, middle, node);
+		right[node] = build(meshes, middle, last, node);
+		fitToChildren(node);
+		return node;
+	}
+	
+	// Partially sorts order so the mesh at index k is the one that would be there if fully sorted along the axis
+	private void select(int low, int high, int k, int axis) {
+		while (low < high) {
+			float pivot = centres[order[(low + high) >>> 1] * 3 + axis];
+			int i = low, j = high;
+			while (i <= j) {
+				while (centres[order[i] * 3 + axis] < pivot) i++;
+				while (centres[order[j] * 3 + axis] > pivot) j--;
+				if (i <= j) {
+					int temp = order[i];
+					order[i] = order[j];
+					order[j] = temp;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j)
+				high = j;
+			else if (k >= i)
+				low = i;
+			else
+				return;
+		}
+	}
+	
+	private void fitToChildren(int node) {
+		int 
+		a = left[node] * 6,
+		b = right[node] * 6,
+		n = node * 6;
+		for (int i = 0; i < 3; i++) {
+			bounds[n + i] 	  = Math.min(bounds[a + i], bounds[b + i]);
+			bounds[n + 3 + i] = Math.max(bounds[a + 3 + i], bounds[b + 3 + i]);
+		}
+	}
+	
+	private void setBounds(int node, Vector3 min, Vector3 max) {
+		int n = node * 6;
+		bounds[n] 	  = min.x;
+		bounds[n + 1] = min.y;
+		bounds[n + 2] = min.z;
+		bounds[n + 3] = max.x;
+		bounds[n + 4] = max.y;
+		bounds[n + 5] = max.z;
+	}
+	private void getBounds(int node, Vector3 min, Vector3 max) {
+		int n = node * 6;
+		min.set(bounds[n], bounds[n + 1], bounds[n + 2]);
+		max.set(bounds[n + 3], bounds[n + 4], bounds[n + 5]);
+	}
+}
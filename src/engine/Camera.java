@@ -1,6 +1,7 @@
 package engine;
 
 
+import engine.math.Frustum;
 import engine.math.Matrix;
 import engine.math.Vector3;
 
@@ -16,7 +17,11 @@ public class Camera {
 	
 	Matrix 
 	viewMatrix = new Matrix(),
-	projectionMatrix = new Matrix();
+	projectionMatrix = new Matrix(),
+	viewProjectionMatrix = new Matrix();
+	Frustum frustum = new Frustum(); // Kept up to date with the matrices
+	// Rasterizer's screen matrix scales by the width and height, so only -0.5w to 0.5w ends up on the screen
+	static final float SCREEN_EXTENT = 0.5f;
 	
 	public Camera(float fov, int width, int height, float znear, float zfar) {
 		set(fov, width, height, znear, zfar);
@@ -119,9 +124,15 @@ public class Camera {
 	
 	private void updateViewMatrix() {
 		Matrix.lookAtLH(position, target, Vector3.up, viewMatrix);
+		updateFrustum();
 	}
 	private void updateProjectionMatrix() {
 		 Matrix.PerspectiveFovLH(fov, (float)width / (float)height, znear, zfar, projectionMatrix);
+		 updateFrustum();
+	}
+	private void updateFrustum() {
+		Matrix.multiply(viewMatrix, projectionMatrix, viewProjectionMatrix);
+		frustum.set(viewProjectionMatrix, SCREEN_EXTENT);
 	}
 	
 	public Camera Clone() {
@@ -0,0 +1,132 @@
+package engine;
+
+import engine.math.Vector3;
+import engine.models.Mesh;
+import engine.models.UVSet;
+
+// Clips triangles in homogeneous space, before the divide by w, against znear, zfar and optionally a guard band around the screen.
+// Coordinates are as they come out of the mesh's projection, so x/w and y/w are already in pixels and z/w runs from 0 to 1
+final class Clipper {
+	public static final int // Outcodes, a bit for each plane a vertex is outside of
+	NEAR = 1,
+	FAR = 2,
+	LEFT = 4,
+	RIGHT = 8,
+	TOP = 16,
+	BOTTOM = 32,
+	GUARD_BAND = LEFT | RIGHT | TOP | BOTTOM;
+	
+	// Each vertex is x, y, z, w, world x, y, z, u, v
+	private static final int 
+	STRIDE = 9,
+	MAX_VERTICES = 3 + 6; // Each plane can add at most one vertex
+	private float[] 
+	vertices = new float[STRIDE * MAX_VERTICES],
+	clipped = new float[STRIDE * MAX_VERTICES];
+	private int numvertices;
+	
+	// Guard band, in pixels
+	private float minx, miny, maxx, maxy;
+	private int planes = NEAR | FAR;
+	
+	public Clipper() {}
+	
+	public void setGuardBand(boolean enabled, float minx, float miny, float maxx, float maxy) {
+		this.minx = minx;
+		this.miny = miny;
+		this.maxx = maxx;
+		this.maxy = maxy;
+		planes = enabled ? NEAR | FAR | GUARD_BAND : NEAR | FAR;
+	}
+	
+	public int outcode(float x, float y, float z, float w) {
+		int code = 0;
+		if (z < 0) 		code |= NEAR;
+		if (z > w) 		code |= FAR;
+		if ((planes & GUARD_BAND) != 0) {
+			if (x < minx * w) code |= LEFT;
+			if (x > maxx * w) code |= RIGHT;
+			if (y < miny * w) code |= TOP;
+			if (y > maxy * w) code |= BOTTOM;
+		}
+		
+		return code;
+	}
+	
+	// Clips the triangle against the planes in the outcode, leaving a convex polygon. Returns how many vertices it has
+	public int clip(Mesh mesh, int face, int outcode) {
+		numvertices = 0;
+		for (int corner = 0; corner < 3; corner++)
+			addVertex(mesh, mesh.indices[face*3 + corner], face*6 + corner*2);
+		
+		for (int plane = NEAR; plane <= BOTTOM && numvertices >= 3; plane <<= 1)
+			if ((outcode & plane) != 0)
+				clipAgainst(plane);
+		
+		return numvertices < 3 ? 0 : numvertices;
+	}
+	
+	// Fills in a vertex of the polygon, returns its 1/w
+	public float getVertex(int index, Vector3 world, Vector3 screen, UVSet uv) {
+		int i = index * STRIDE;
+		float w = vertices[i+3];
+		screen.set(vertices[i] / w, vertices[i+1] / w, vertices[i+2] / w);
+		world.set(vertices[i+4], vertices[i+5], vertices[i+6]);
+		uv.set(vertices[i+7], vertices[i+8]);
+		return 1f / w;
+	}
+	
+	private void addVertex(Mesh mesh, int vertex, int uv) {
+		int i = numvertices++ * STRIDE;
+		System.arraycopy(mesh.homogeneousvertcies, vertex * 4, vertices, i, 4);
+		System.arraycopy(mesh.worldpositions, vertex * 3, vertices, i + 4, 3);
+		System.arraycopy(mesh.uvs, uv, vertices, i + 7, 2);
+	}
+	
+	// Sutherland-Hodgman. Everything is linear before the divide, so all attributes interpolate the same way
+	private void clipAgainst(int plane) {
+		int count = 0;
+		int previous = numvertices - 1;
+		float previousdistance = distance(plane, previous);
+		for (int current = 0; current < numvertices; current++) {
+			float distance = distance(plane, current);
+			if ((distance >= 0) != (previousdistance >= 0)) {
+				// Edge crosses the plane
+				float t = previousdistance / (previousdistance - distance);
+				int a = previous * STRIDE, b = current * STRIDE, out = count++ * STRIDE;
+				for (int i = 0; i < STRIDE; i++)
+					clipped[out+i] = vertices[a+i] + (vertices[b+i] - vertices[a+i]) * t;
+			}
+			if (distance >= 0)
+				System.arraycopy(vertices, current * STRIDE, clipped, count++ * STRIDE, STRIDE);
+			
+			previous = current;
+			previousdistance = distance;
+		}
+		
+		float[] temp = vertices;
+		vertices = clipped;
+		clipped = temp;
+		numvertices = count;
+	}
+	
+	// Positive inside the plane
+	private float distance(int plane, int vertex) {
+		int i = vertex * STRIDE;
+		float 
+		x = vertices[i],
+		y = vertices[i+1],
+		z = vertices[i+2],
+		w = vertices[i+3];
+		switch (plane) {
+			case NEAR: 		return z;
+			case FAR: 		return w - z;
+			case LEFT: 		return x - minx * w;
+			case RIGHT: 	return maxx * w - x;
+			case TOP: 		return y - miny * w;
+			case BOTTOM: 	return maxy * w - y;
+		}
+		
+		return 0;
+	}
+}
@@ -0,0 +1,180 @@
+package engine;
+
+import java.util.Arrays;
+
+// Coarse copies of the depth buffer holding the furthest depth in every 8x8 and 64x64 cell.
+// If everything a triangle could draw in a cell is further away than the furthest depth already there,
+// every one of its pixels would fail a LESS or LEQUAL depth test and the cell can be skipped.
+// Cells are marked dirty as depth is written and only trusted again once refreshed by the context
+// that owns them, so threads drawing neighbouring tiles never depend on each other's cells
+final class DepthHierarchy {
+	public static final int 
+	FINE_SHIFT = 3,
+	FINE_SIZE = 1 << FINE_SHIFT,
+	COARSE_SHIFT = 6,
+	COARSE_SIZE = 1 << COARSE_SHIFT;
+	private static final int FINE_PER_COARSE = COARSE_SIZE / FINE_SIZE;
+	
+	private final int width, height;
+	private final float[] depthBuffer;
+	private final int 
+	finewidth, fineheight,
+	coarsewidth, coarseheight;
+	private final float[] 
+	fine, coarse;
+	private final boolean[] 
+	finedirty, coarsedirty;
+	
+	public DepthHierarchy(int width, int height, float[] depthBuffer) {
+		this.width = width;
+		this.height = height;
+		this.depthBuffer = depthBuffer;
+		
+		finewidth = (width + FINE_SIZE - 1) >> FINE_SHIFT;
+		fineheight = (height + FINE_SIZE - 1) >> FINE_SHIFT;
+		coarsewidth = (width + COARSE_SIZE - 1) >> COARSE_SHIFT;
+		coarseheight = (height + COARSE_SIZE - 1) >> COARSE_SHIFT;
+		
+		fine = new float[finewidth * fineheight];
+		finedirty = new boolean[fine.length];
+		coarse = new float[coarsewidth * coarseheight];
+		coarsedirty = new boolean[coarse.length];
+	}
+	
+	public void clear(float depth) {
+		Arrays.fill(fine, depth);
+		Arrays.fill(coarse, depth);
+		Arrays.fill(finedirty, false);
+		Arrays.fill(coarsedirty, false);
+	}
+	
+	// Pixels firstx to lastx (exclusive) on row y may have had their depth changed
+	public void markDirty(int y, int firstx, int lastx) {
+		int finerow = (y >> FINE_SHIFT) * finewidth;
+		for (int cellx = firstx >> FINE_SHIFT; cellx <= (lastx-1) >> FINE_SHIFT; cellx++)
+			finedirty[finerow + cellx] = true;
+		
+		int coarserow = (y >> COARSE_SHIFT) * coarsewidth;
+		for (int cellx = firstx >> COARSE_SHIFT; cellx <= (lastx-1) >> COARSE_SHIFT; cellx++)
+			coarsedirty[coarserow + cellx] = true;
+	}
+	
+	// Would every pixel of the primitive inside the region (max exclusive) fail the depth test?
+	public boolean isOccluded(Primitive f, int minx, int miny, int maxx, int maxy, boolean lessequal) {
+		for (int coarsey = miny >> COARSE_SHIFT; coarsey <= (maxy-1) >> COARSE_SHIFT; coarsey++) {
+			for (int coarsex = minx >> COARSE_SHIFT; coarsex <= (maxx-1) >> COARSE_SHIFT; coarsex++) {
+				int 
+				cellminx = Math.max(coarsex << COARSE_SHIFT, minx),
+				cellminy = Math.max(coarsey << COARSE_SHIFT, miny),
+				cellmaxx = Math.min((coarsex + 1) << COARSE_SHIFT, maxx),
+				cellmaxy = Math.min((coarsey + 1) << COARSE_SHIFT, maxy);
+				int cell = coarsey * coarsewidth + coarsex;
+				if (!coarsedirty[cell] && isBehind(f.minimumDepth(cellminx, cellminy, cellmaxx, cellmaxy), coarse[cell], lessequal))
+					continue;
+				
+				// Not hidden as a whole, but may be a piece at a time
+				if (!isFineOccluded(f, cellminx, cellminy, cellmaxx, cellmaxy, lessequal))
+					return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	public boolean isFineOccluded(Primitive f, int minx, int miny, int maxx, int maxy, boolean lessequal) {
+		for (int finey = miny >> FINE_SHIFT; finey <= (maxy-1) >> FINE_SHIFT; finey++) {
+			for (int finex = minx >> FINE_SHIFT; finex <= (maxx-1) >> FINE_SHIFT; finex++) {
+				int cell = finey * finewidth + finex;
+				if (finedirty[cell])
+					return false;
+				
+				float nearest = f.minimumDepth(
+						Math.max(finex << FINE_SHIFT, minx),
+						Math.max(finey << FINE_SHIFT, miny),
+						Math.min((finex + 1) << FINE_SHIFT, maxx),
+						Math.min((finey + 1) << FINE_SHIFT, maxy)
+					);
+				if (!isBehind(nearest, fine[cell], lessequal))
+					return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	private static boolean isBehind(float nearest, float furthest, boolean lessequal) {
+		return lessequal ? nearest > furthest : nearest >= furthest;
+	}
+	
+	// Recalculates the dirty cells touching the region that lie entirely inside the context's clip
+	public void refresh(int minx, int miny, int maxx, int maxy, RasterContext context) {
+		int 
+		firstfinex = Math.max(minx >> FINE_SHIFT, firstOwnedCell(context.minx, FINE_SHIFT)),
+		firstfiney = Math.max(miny >> FINE_SHIFT, firstOwnedCell(context.miny, FINE_SHIFT)),
+		lastfinex = Math.min((maxx-1) >> FINE_SHIFT, lastOwnedCell(context.maxx, width, FINE_SHIFT)),
+		lastfiney = Math.min((maxy-1) >> FINE_SHIFT, lastOwnedCell(context.maxy, height, FINE_SHIFT));
+		for (int finey = firstfiney; finey <= lastfiney; finey++) {
+			for (int finex = firstfinex; finex <= lastfinex; finex++) {
+				int cell = finey * finewidth + finex;
+				if (!finedirty[cell])
+					continue;
+				
+				float furthest = -Float.MAX_VALUE;
+				int 
+				lastx = Math.min((finex + 1) << FINE_SHIFT, width),
+				lasty = Math.min((finey + 1) << FINE_SHIFT, height);
+				for (int y = finey << FINE_SHIFT; y < lasty; y++) {
+					int row = y * width;
+					for (int x = finex << FINE_SHIFT; x < lastx; x++)
+						furthest = Math.max(furthest, depthBuffer[row + x]);
+				}
+				fine[cell] = furthest;
+				finedirty[cell] = false;
+			}
+		}
+		
+		int 
+		firstcoarsex = Math.max(minx >> COARSE_SHIFT, firstOwnedCell(context.minx, COARSE_SHIFT)),
+		firstcoarsey = Math.max(miny >> COARSE_SHIFT, firstOwnedCell(context.miny, COARSE_SHIFT)),
+		lastcoarsex = Math.min((maxx-1) >> COARSE_SHIFT, lastOwnedCell(context.maxx, width, COARSE_SHIFT)),
+		lastcoarsey = Math.min((maxy-1) >> COARSE_SHIFT, lastOwnedCell(context.maxy, height, COARSE_SHIFT));
+		for (int coarsey = firstcoarsey; coarsey <= lastcoarsey; coarsey++) {
+			for (int coarsex = firstcoarsex; coarsex <= lastcoarsex; coarsex++) {
+				int cell = coarsey * coarsewidth + coarsex;
+				if (!coarsedirty[cell])
+					continue;
+				
+				// All of its fine cells are owned too, and were refreshed above
+				float furthest = -Float.MAX_VALUE;
+				int 
+				lastx = Math.min((coarsex + 1) * FINE_PER_COARSE, finewidth),
+				lasty = Math.min((coarsey + 1) * FINE_PER_COARSE, fineheight);
+				for (int finey = coarsey * FINE_PER_COARSE; finey < lasty; finey++) {
+					for (int finex = coarsex * FINE_PER_COARSE; finex < lastx; finex++) {
+						int finecell = finey * finewidth + finex;
+						if (finedirty[finecell]) { // Outside the refreshed region
+							furthest = Float.NaN;
+							break;
+						}
+						furthest = Math.max(furthest, fine[finecell]);
+					}
+				}
+				if (Float.isNaN(furthest))
+					continue;
+				
+				coarse[cell] = furthest;
+				coarsedirty[cell] = false;
+			}
+		}
+	}
+	
+	private static int firstOwnedCell(int clipmin, int shift) {
+		return (clipmin + (1 << shift) - 1) >> shift;
+	}
+	// Cells hanging off the edge of the screen belong to whoever owns the edge
+	private static int lastOwnedCell(int clipmax, int screensize, int shift) {
+		if (clipmax == screensize)
+			return (screensize - 1) >> shift;
+		return (clipmax >> shift) - 1;
+	}
+}
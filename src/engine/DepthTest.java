@@ -0,0 +1,80 @@
+package engine;
+
+import static engine.Rasterizer.*;
+
+// The depth test done a span at a time. The function is switched on once per span, and each has its own loop,
+// so the comparison is right there in the loop rather than a call per pixel
+final class DepthTest {
+	private DepthTest() {}
+	
+	// Fills xs and depths with the pixels from firstx to lastx (exclusive) whose depth passes against the buffer, in order.
+	// Depth at a pixel is depthrow + ddepthdx * (x + 0.5 - originx). Returns how many passed
+	public static int collect(int function, float[] depthbuffer, int rowindex, int firstx, int lastx, 
+			float depthrow, float ddepthdx, float originx, int[] xs, float[] depths) {
+		int length = 0;
+		switch (function) {
+			case GL_LESS:
+				for (int x = firstx; x < lastx; x++) {
+					float depth = depthrow + ddepthdx * (x + 0.5f - originx);
+					if (depth < depthbuffer[rowindex + x]) {
+						xs[length] = x;
+						depths[length++] = depth;
+					}
+				}
+				break;
+			case GL_LEQUAL:
+				for (int x = firstx; x < lastx; x++) {
+					float depth = depthrow + ddepthdx * (x + 0.5f - originx);
+					if (depth <= depthbuffer[rowindex + x]) {
+						xs[length] = x;
+						depths[length++] = depth;
+					}
+				}
+				break;
+			case GL_GREATER:
+				for (int x = firstx; x < lastx; x++) {
+					float depth = depthrow + ddepthdx * (x + 0.5f - originx);
+					if (depth > depthbuffer[rowindex + x]) {
+						xs[length] = x;
+						depths[length++] = depth;
+					}
+				}
+				break;
+			case GL_GEQUAL:
+				for (int x = firstx; x < lastx; x++) {
+					float depth = depthrow + ddepthdx * (x + 0.5f - originx);
+					if (depth >= depthbuffer[rowindex + x]) {
+						xs[length] = x;
+						depths[length++] = depth;
+					}
+				}
+				break;
+			case GL_EQUAL:
+				for (int x = firstx; x < lastx; x++) {
+					float depth = depthrow + ddepthdx * (x + 0.5f - originx);
+					if (depth == depthbuffer[rowindex + x]) {
+						xs[length] = x;
+						depths[length++] = depth;
+					}
+				}
+				break;
+			case GL_NOTEQUAL:
+				for (int x = firstx; x < lastx; x++) {
+					float depth = depthrow + ddepthdx * (x + 0.5f - originx);
+					if (depth != depthbuffer[rowindex + x]) {
+						xs[length] = x;
+						depths[length++] = depth;
+					}
+				}
+				break;
+			case GL_ALWAYS:
+				for (int x = firstx; x < lastx; x++) {
+					xs[length] = x;
+					depths[length++] = depthrow + ddepthdx * (x + 0.5f - originx);
+				}
+				break;
+		}
+		
+		return length;
+	}
+}
@@ -12,14 +12,15 @@ public class Fragment {
 	public int 
 	screenX, screenY;
 	public float
-	u, v;
+	u, v,
+	lod; // Texture level of detail
 	public float destinationDepth, sourceDepth;
 	public Texture texture;
 	
 	public Fragment() {}
 	
 	protected Color getTextureColor() {
-		sourceColor.set(texture.map(u, v));
+		sourceColor.set(texture.mapARGB(u, v, lod));
 		return sourceColor;
 	}
 }
@@ -0,0 +1,68 @@
+package engine;
+
+import java.util.Arrays;
+
+import engine.math.Matrix;
+import engine.math.Vector3;
+import engine.models.Mesh;
+
+// One instance in a batch being drawn by renderInstanced. Culling is done against the model space clusters every instance shares,
+// then only the vertcies and faces of what's left are moved and projected into this instance's mesh
+final class Instance {
+	final Mesh model; // The mesh in model space, shared by every instance of it
+	final Mesh mesh; // Shares the model's vertcies and faces, with its own world and projected copies
+	Matrix matrix; // World matrix, null between batches
+	final Matrix 
+	inverse = new Matrix(), // World to model space
+	worldview = new Matrix(),
+	transformmatrix = new Matrix(); // Model space to screen
+	final boolean[] visibleclusters;
+	final int[] faces; // Faces left to draw, in order
+	int numfaces;
+	final int[] outcodes; // Which clipping planes each projected vertex is outside of
+	private final int[] 
+	transformed, // Stamp each vertex was last moved for
+	projected; // Stamp each vertex was last projected for
+	private int stamp = 0;
+	final Vector3 
+	modelcamera = new Vector3(0,0,0), // Camera position in model space
+	clustercentre = new Vector3(0,0,0), // In model space, and in world space below
+	worldcentre = new Vector3(0,0,0),
+	aimdirection = new Vector3(0,0,0);
+	
+	public Instance(Mesh model) {
+		this.model = model;
+		mesh = new Mesh(model);
+		visibleclusters = new boolean[model.getNumClusters()];
+		faces = new int[model.getNumFaces()];
+		outcodes = new int[model.getNumVertcies()];
+		transformed = new int[model.getNumVertcies()];
+		projected = new int[model.getNumVertcies()];
+	}
+	
+	// Starts on another matrix, so every vertex needs moving and projecting again
+	void reset() {
+		numfaces = 0;
+		if (++stamp == Integer.MAX_VALUE) {
+			Arrays.fill(transformed, 0);
+			Arrays.fill(projected, 0);
+			stamp = 1;
+		}
+	}
+	
+	// Whether the vertex still needs moving, and marks it as done
+	boolean transform(int vertex) {
+		if (transformed[vertex] == stamp)
+			return false;
+		
+		transformed[vertex] = stamp;
+		return true;
+	}
+	boolean project(int vertex) {
+		if (projected[vertex] == stamp)
+			return false;
+		
+		projected[vertex] = stamp;
+		return true;
+	}
+}
@@ -0,0 +1,42 @@
+package engine;
+
+import java.util.concurrent.RecursiveAction;
+
+import engine.math.Vector3;
+import engine.models.Mesh;
+
+// Culls, moves and projects a batch of instances of a mesh, one task per instance
+final class InstanceTask extends RecursiveAction {
+	private static final long serialVersionUID = -6154702837495312960L;
+	
+	private final Rasterizer rasterizer;
+	private final Instance[] instances;
+	private final Mesh model;
+	private final Camera camera;
+	private final Vector3 camerapos;
+	private final int first, last; // Last is exclusive
+	
+	public InstanceTask(Rasterizer rasterizer, Instance[] instances, Mesh model, Camera camera, Vector3 camerapos, int first, int last) {
+		this.rasterizer = rasterizer;
+		this.instances = instances;
+		this.model = model;
+		this.camera = camera;
+		this.camerapos = camerapos;
+		this.first = first;
+		this.last = last;
+	}
+
+	@Override
+	protected void compute() {
+		if (last - first > 1) {
+			int middle = (first + last) >>> 1;
+			invokeAll(
+					new InstanceTask(rasterizer, instances, model, camera, camerapos, first, middle),
+					new InstanceTask(rasterizer, instances, model, camera, camerapos, middle, last)
+				);
+			return;
+		}
+		
+		rasterizer.prepareInstance(instances[first], model, camera, camerapos);
+	}
+}
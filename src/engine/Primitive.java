@@ -2,6 +2,7 @@ package engine;
 
 import engine.math.AABB;
 import engine.math.Vector3;
+import engine.models.Mesh;
 import engine.models.Texture;
 import engine.models.UVSet;
 
@@ -17,17 +18,90 @@ final class Primitive {
 		topVertexUV,
 		middleVertexUV,
 		bottomVertexUV;
+	public float
+		topinversew,
+		middleinversew,
+		bottominversew;
 	public Texture texture;
+	public Vector3 
+	facenormal = new Vector3(),
+	facecentre = new Vector3();
+	public int surface; // Which of the rasterizer's deferred surfaces it belongs to
+	public int 
+	minx, miny, // Screen space bounds, rounded outwards
+	maxx, maxy;
 	private AABB boundingbox = new AABB();
 	
+	// Copies of the vertices, meshes keep theirs in flat arrays and triangles made by clipping aren't part of any mesh
+	private Vector3[] 
+	vertexworld = { new Vector3(), new Vector3(), new Vector3() },
+	vertexscreen = { new Vector3(), new Vector3(), new Vector3() };
+	private UVSet[] vertexuvs = { new UVSet(0,0), new UVSet(0,0), new UVSet(0,0) };
+	
+	// Plane equations of the attributes across the screen, value = a + da/dx * (x - originx) + da/dy * (y - originy).
+	// Everything except depth and 1/w is divided by w, as only those interpolate linearly after projection
+	public float
+		originx, originy,
+		depth, 		ddepthdx, 		ddepthdy,
+		inversew, 	dinversewdx, 	dinversewdy,
+		u, 			dudx, 			dudy,
+		v, 			dvdx, 			dvdy,
+		worldx, 	dworldxdx, 		dworldxdy,
+		worldy, 	dworldydx, 		dworldydy,
+		worldz, 	dworldzdx, 		dworldzdy;
+	
 	public Primitive() {}
 	
-	public final void set(Vector3 worldv1, Vector3 worldv2, Vector3 worldv3, Vector3 screenv1, Vector3 screenv2, Vector3 screenv3, UVSet uv1, UVSet uv2, UVSet uv3, Texture texture) {
+	public final void set(Mesh mesh, int face) {
+		float inversew1, inversew2, inversew3;
+		inversew1 = setVertex(0, mesh, mesh.indices[face*3], face*6);
+		inversew2 = setVertex(1, mesh, mesh.indices[face*3 + 1], face*6 + 2);
+		inversew3 = setVertex(2, mesh, mesh.indices[face*3 + 2], face*6 + 4);
+		set(
+				vertexworld[0], vertexworld[1], vertexworld[2],
+				vertexscreen[0], vertexscreen[1], vertexscreen[2],
+				inversew1, inversew2, inversew3,
+				vertexuvs[0], vertexuvs[1], vertexuvs[2],
+				mesh.texture
+			);
+	}
+	private float setVertex(int corner, Mesh mesh, int vertex, int uv) {
+		int i = vertex * 3;
+		vertexworld[corner].set(mesh.worldpositions[i], mesh.worldpositions[i+1], mesh.worldpositions[i+2]);
+		vertexscreen[corner].set(mesh.projectedpositions[i], mesh.projectedpositions[i+1], mesh.projectedpositions[i+2]);
+		vertexuvs[corner].set(mesh.uvs[uv], mesh.uvs[uv+1]);
+		return mesh.projectedinversew[vertex];
+	}
+	
+	// Takes three vertices of a polygon the clipper made
+	public final void set(Clipper clipper, int vertex1, int vertex2, int vertex3, Texture texture) {
+		float 
+		inversew1 = clipper.getVertex(vertex1, vertexworld[0], vertexscreen[0], vertexuvs[0]),
+		inversew2 = clipper.getVertex(vertex2, vertexworld[1], vertexscreen[1], vertexuvs[1]),
+		inversew3 = clipper.getVertex(vertex3, vertexworld[2], vertexscreen[2], vertexuvs[2]);
+		set(
+				vertexworld[0], vertexworld[1], vertexworld[2],
+				vertexscreen[0], vertexscreen[1], vertexscreen[2],
+				inversew1, inversew2, inversew3,
+				vertexuvs[0], vertexuvs[1], vertexuvs[2],
+				texture
+			);
+	}
+	
+	// Also copies the face's normal and centre
+	public final void setFace(Mesh mesh, int face) {
+		int i = face * 3;
+		facenormal.set(mesh.normals[i], mesh.normals[i+1], mesh.normals[i+2]);
+		facecentre.set(mesh.centres[i], mesh.centres[i+1], mesh.centres[i+2]);
+	}
+	
+	private final void set(Vector3 worldv1, Vector3 worldv2, Vector3 worldv3, Vector3 screenv1, Vector3 screenv2, Vector3 screenv3, float inversew1, float inversew2, float inversew3, UVSet uv1, UVSet uv2, UVSet uv3, Texture texture) {
 		this.texture = texture;
 		
 		// Sort verts by height, v1 at top
 		Vector3 tempvertex;
 		UVSet tempuv;
+		float tempw;
 		if (screenv1.y > screenv2.y) {
 			tempvertex = screenv2;
 			screenv2 = screenv1;
@@ -40,6 +114,10 @@ final class Primitive {
 			tempvertex = worldv1;
 			worldv1 = worldv2;
 			worldv2 = tempvertex;
+			
+			tempw = inversew2;
+			inversew2 = inversew1;
+			inversew1 = tempw;
 		}
 			
 		if (screenv2.y > screenv3.y) {
@@ -54,6 +132,10 @@ final class Primitive {
 			tempvertex = worldv2;
 			worldv2 = worldv3;
 			worldv3 = tempvertex;
+			
+			tempw = inversew2;
+			inversew2 = inversew3;
+			inversew3 = tempw;
 				
 			if (screenv1.y > screenv2.y) {
 				tempvertex = screenv2;
@@ -67,9 +149,17 @@ final class Primitive {
 				tempvertex = worldv1;
 				worldv1 = worldv2;
 				worldv2 = tempvertex;
+				
+				tempw = inversew2;
+				inversew2 = inversew1;
+				inversew1 = tempw;
 			}
 		}
 		
+		this.topinversew 	= inversew1;
+		this.middleinversew = inversew2;
+		this.bottominversew = inversew3;
+		
 		this.worldtop 		= worldv1;
 		this.worldmiddle	= worldv2;
 		this.worldbottom 	= worldv3;
@@ -84,9 +174,9 @@ final class Primitive {
 	public void calculateboundingBox() {
 		float 
 		minx = Float.MAX_VALUE,
-		maxx = Float.MIN_VALUE,
+		maxx = -Float.MAX_VALUE,
 		miny = Float.MAX_VALUE,
-		maxy = Float.MIN_VALUE;
+		maxy = -Float.MAX_VALUE;
 		
 		Vector3 
 		v1 = screentop,
@@ -109,6 +199,85 @@ final class Primitive {
 		if (v3.y > maxy) maxy = v3.y;
 		
 		boundingbox.set((int)minx, (int)miny, (int)(maxx-minx), (int)(maxy-miny));
+		this.minx = (int)Math.floor(minx);
+		this.miny = (int)Math.floor(miny);
+		this.maxx = (int)Math.ceil(maxx);
+		this.maxy = (int)Math.ceil(maxy);
+	}
+	
+	public void calculateGradients() {
+		Vector3 
+		p0 = screentop,
+		p1 = screenmiddle,
+		p2 = screenbottom;
+		
+		float 
+		x1 = p1.x - p0.x, y1 = p1.y - p0.y,
+		x2 = p2.x - p0.x, y2 = p2.y - p0.y,
+		inversearea = 1f / (x1 * y2 - y1 * x2);
+		
+		originx = p0.x;
+		originy = p0.y;
+		
+		depth = p0.z;
+		ddepthdx = gradientX(p0.z, p1.z, p2.z, y1, y2, inversearea);
+		ddepthdy = gradientY(p0.z, p1.z, p2.z, x1, x2, inversearea);
+		
+		float w0 = topinversew, w1 = middleinversew, w2 = bottominversew;
+		inversew = w0;
+		dinversewdx = gradientX(w0, w1, w2, y1, y2, inversearea);
+		dinversewdy = gradientY(w0, w1, w2, x1, x2, inversearea);
+		
+		u = topVertexUV.u * w0;
+		dudx = gradientX(u, middleVertexUV.u * w1, bottomVertexUV.u * w2, y1, y2, inversearea);
+		dudy = gradientY(u, middleVertexUV.u * w1, bottomVertexUV.u * w2, x1, x2, inversearea);
+		
+		v = topVertexUV.v * w0;
+		dvdx = gradientX(v, middleVertexUV.v * w1, bottomVertexUV.v * w2, y1, y2, inversearea);
+		dvdy = gradientY(v, middleVertexUV.v * w1, bottomVertexUV.v * w2, x1, x2, inversearea);
+		
+		worldx = worldtop.x * w0;
+		dworldxdx = gradientX(worldx, worldmiddle.x * w1, worldbottom.x * w2, y1, y2, inversearea);
+		dworldxdy = gradientY(worldx, worldmiddle.x * w1, worldbottom.x * w2, x1, x2, inversearea);
+		
+		worldy = worldtop.y * w0;
+		dworldydx = gradientX(worldy, worldmiddle.y * w1, worldbottom.y * w2, y1, y2, inversearea);
+		dworldydy = gradientY(worldy, worldmiddle.y * w1, worldbottom.y * w2, x1, x2, inversearea);
+		
+		worldz = worldtop.z * w0;
+		dworldzdx = gradientX(worldz, worldmiddle.z * w1, worldbottom.z * w2, y1, y2, inversearea);
+		dworldzdy = gradientY(worldz, worldmiddle.z * w1, worldbottom.z * w2, x1, x2, inversearea);
+	}
+	
+	// Depth of the sample at the centre of a pixel, worked out exactly as the rasterizer does
+	public float depthAt(int x, int y) {
+		float depthrow = depth + ddepthdy * (y + 0.5f - originy);
+		return depthrow + ddepthdx * (x + 0.5f - originx);
+	}
+	
+	// Nearest depth the primitive's plane reaches over a block of pixels, max exclusive.
+	// The plane is flat so it's always at a corner
+	public float minimumDepth(int minx, int miny, int maxx, int maxy) {
+		return Math.min(
+				Math.min(depthAt(minx, miny), depthAt(maxx-1, miny)),
+				Math.min(depthAt(minx, maxy-1), depthAt(maxx-1, maxy-1))
+			);
+	}
+	
+	public float maximumDepth(int minx, int miny, int maxx, int maxy) {
+		return Math.max(
+				Math.max(depthAt(minx, miny), depthAt(maxx-1, miny)),
+				Math.max(depthAt(minx, maxy-1), depthAt(maxx-1, maxy-1))
+			);
+	}
+	
+	// Rate of change of an attribute across the screen, from its value at each vertex and the
+	// position of the middle and bottom vertex relative to the top one
+	private static float gradientX(float a0, float a1, float a2, float y1, float y2, float inversearea) {
+		return ((a1 - a0) * y2 - (a2 - a0) * y1) * inversearea;
+	}
+	private static float gradientY(float a0, float a1, float a2, float x1, float x2, float inversearea) {
+		return ((a2 - a0) * x1 - (a1 - a0) * x2) * inversearea;
 	}
 	
 	public boolean anyVertexOnScreen(AABB screen) {
@@ -143,6 +312,8 @@ final class Primitive {
 		Primitive f = new Primitive();
 		f.boundingbox = boundingbox;
 		f.texture = texture;
+		f.facenormal = facenormal;
+		f.facecentre = facecentre;
 		f.screentop = screentop;
 		f.screenmiddle = screenmiddle;
 		f.screenbottom = screenbottom;
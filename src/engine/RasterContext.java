@@ -0,0 +1,43 @@
+package engine;
+
+import java.util.IdentityHashMap;
+
+import engine.math.Vector3;
+import engine.models.Materials.Shading.Shader;
+import engine.models.Materials.Shading.Span;
+
+// Scratch state owned by one rasterizing thread, and the area of the screen it may write to
+final class RasterContext {
+	public Shader shader;
+	public Span span = new Span(); // Pixels waiting to be shaded
+	public Vector3 
+	facenormal = new Vector3(0,0,0), // Of the deferred surface being resolved
+	facecentre = new Vector3(0,0,0);
+	public int 
+	minx, miny, // Inclusive
+	maxx, maxy; // Exclusive
+	private IdentityHashMap<Shader, Shader> shaderclones = new IdentityHashMap<Shader, Shader>();
+	
+	public RasterContext() {}
+	
+	// This thread's copy of a shader, made the first time it's asked for since the last clearShaders()
+	public final Shader getShader(Shader shader) {
+		Shader clone = shaderclones.get(shader);
+		if (clone == null) {
+			clone = shader.Clone();
+			shaderclones.put(shader, clone);
+		}
+		
+		return clone;
+	}
+	public final void clearShaders() {
+		shaderclones.clear();
+	}
+	
+	public final void setClip(int minx, int miny, int maxx, int maxy) {
+		this.minx = minx;
+		this.miny = miny;
+		this.maxx = maxx;
+		this.maxy = maxy;
+	}
+}
@@ -5,16 +5,22 @@ import static engine.math.CommonMath.*;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import engine.math.AABB;
 import engine.math.Color;
+import engine.math.Frustum;
 import engine.math.Matrix;
 import engine.math.Vector3;
-import engine.models.Face;
 import engine.models.Mesh;
 import engine.models.Texture;
 import engine.models.Materials.ImageTexture;
 import engine.models.Materials.Shading.Shader;
+import engine.models.Materials.Shading.Span;
+import utils.ThreadPool;
 
 public class Rasterizer {
 	// Global enums like OpenGL. Import statically for convenience
@@ -23,6 +29,11 @@ public class Rasterizer {
 	GL_DEPTH = 2,
 	
 	GL_CULL_FACE = 1,
+	GL_PARALLEL = 4,
+	GL_HALF_SPACE = 8,
+	GL_DEPTH_HIERARCHY = 16,
+	GL_DEFERRED = 32,
+	GL_GUARD_BAND = 64,
 	GL_FRONT = 1,
 	GL_BACK = 2,
 	GL_FRONT_AND_BACK = 3,
@@ -47,52 +58,108 @@ public class Rasterizer {
 	//TODO: Replace with texture
 	private int width, height;
 	private BufferedImage framebuffer;
-	private Color[] pixels;
+	private int[] 
+	pixels, // Back buffer, packed ARGB
+	outputpixels; // Front buffer, the framebuffer's backing array
 	private float[] depthBuffer;
-	private Color clearColor = Color.alpha;
+	private DepthHierarchy depthHierarchy;
+	private int clearColor = 0x00000000;
 	
 	// Data required for rasterization process
 	private Matrix
 	screenmatrix,
 	worldviewMatrix = new Matrix(),
 	transformMatrix = new Matrix();
-	private Vector3 
-	facecenter = new Vector3(0,0,0), // The position of the centre of the face being rendered
-	worldpos = new Vector3(0,0,0); // The world position of the current pixel being shaded
+	private Vector3 aimdirection = new Vector3(0,0,0); // From the camera to the face being culled
 	private AABB boundingbox; // Used to clip triangles
 	private Primitive currentFragment = new Primitive();
+	private Clipper clipper = new Clipper();
+	private ArrayList<Mesh> visiblemeshes = new ArrayList<Mesh>();
+	private WeakHashMap<Mesh, Instance[]> instancesets = new WeakHashMap<Mesh, Instance[]>(); // Kept for each mesh drawn instanced until it's let go of
+	private Vector3 instancecentre = new Vector3(0,0,0);
+	private boolean[] visibleclusters = new boolean[0]; // Of the mesh being rendered
+	private Vector3 clustercentre = new Vector3(0,0,0);
+	private static final double CLUSTER_CULL_MARGIN = 1e-3; // Radians, so faces on the edge of being culled are left to the per face test
+	private int[] outcodes = new int[0]; // Which clipping planes each vertex of the current mesh is outside of
+	private float guardBand = 1024; // Pixels past each edge of the screen triangles may reach before they're clipped
+	private float levelOfDetailError = 1; // Pixels a mesh's simplified surface may be out by on screen
+	private RasterContext maincontext = new RasterContext();
+	
+	// Data required for tiled, multi-threaded rasterization
+	private ArrayList<Primitive> primitives = new ArrayList<Primitive>();
+	private int[][] bins; // Indices into primitives, for each tile
+	private int[] bincounts;
+	private RasterContext[] workercontexts;
+	private boolean resolving = false; // Whether the tiles are being drawn or resolved
+	
+	// Deferred shading. The raster pass only records the inputs of the nearest surface at each pixel,
+	// then resolve() shades each pixel once no matter how many triangles were drawn over it.
+	// Only one surface is kept per pixel, so anything that would show a surface through another doesn't:
+	// blending and shaders that pass the destination through see what was under all the deferred surfaces, not the one behind
+	private int[] surfaceBuffer; // Index of the surface visible at each pixel, -1 if none
+	private float[] 
+	uBuffer, vBuffer, lodBuffer,
+	worldxBuffer, worldyBuffer, worldzBuffer,
+	destinationDepthBuffer; // Depth before the first deferred surface was drawn at each pixel
+	private float[] 
+	surfaceNormals = new float[0], // x, y, z of each surface's face normal
+	surfaceCentres = new float[0];
+	private Shader[] surfaceShaders = new Shader[0];
+	private Texture[] surfaceTextures = new Texture[0];
+	private int[] surfaceBlendFunctions = new int[0]; // Blend function when each surface was drawn
+	private int numsurfaces = 0;
 	
 	// Settings
-	private boolean cullfaces = false;
+	private boolean 
+	cullfaces = false,
+	parallel = false,
+	halfspace = false,
+	hierarchicaldepth = false,
+	deferred = false,
+	guardbandclipping = false;
+	private int tileSize = 64;
+	
+	// Half-space rasterization
+	private static final int 
+	BLOCK_SIZE = 8, // Must be a power of two
+	OUTSIDE = 0,
+	PARTIAL = 1,
+	INSIDE = 2;
 	private int 
 	cullFaceMode = GL_BACK,
 	blendFunction = GL_FUNC_SET,
 	depthFunction = GL_LESS;
 	
+	// Pipeline state, rebuilt from the settings whenever they change
+	private boolean occlusiontest = false; // Whether the depth hierarchy can be used to skip hidden triangles and spans
+	
 	public Rasterizer(int width, int height) {
 		this.width = width;
 		this.height = height;
 		
 		boundingbox = new AABB(0,0, width,height);
+		maincontext.setClip(0, 0, width, height);
 		
 		framebuffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		outputpixels = ((DataBufferInt)framebuffer.getRaster().getDataBuffer()).getData(); // Pointer to buffer
 		
-		pixels = new Color[width * height];
+		pixels = new int[width * height];
 		depthBuffer = new float[pixels.length];
+		depthHierarchy = new DepthHierarchy(width, height, depthBuffer);
 		
-		screenmatrix = Matrix.scaling(-width, -height, 1).multiply(Matrix.translation(width / 2, height / 2, 1));
+		screenmatrix = Matrix.scaling(-width, -height, 1).multiply(Matrix.translation(width / 2, height / 2, 0));
 		
-		for (int i=0; i<pixels.length; i++)
-			pixels[i] = new Color(clearColor);
+		updatePipeline();
+		clearFrameBuffer();
 		clearDepthBuffer();
 	}
 	
 	// Setters
 	public void setClearColor(int argb) {
-		clearColor.set(argb);
+		clearColor = argb;
 	}
 	public void setClearColor(Color color) {
-		clearColor.set(color);
+		clearColor = color.toARGB();
 	}
 	
 	// OpenGL methods
@@ -107,15 +174,55 @@ public class Rasterizer {
 		if ((settings & GL_CULL_FACE) == GL_CULL_FACE)
 			cullfaces = true;
 		
+		if ((settings & GL_PARALLEL) == GL_PARALLEL)
+			parallel = true;
+		
+		if ((settings & GL_HALF_SPACE) == GL_HALF_SPACE)
+			halfspace = true;
+		
+		if ((settings & GL_DEPTH_HIERARCHY) == GL_DEPTH_HIERARCHY) {
+			hierarchicaldepth = true;
+			depthHierarchy.clear(Float.MAX_VALUE); // Cells went stale while disabled, so hide nothing behind them until they are refreshed
+		}
+		
+		if ((settings & GL_DEFERRED) == GL_DEFERRED && !deferred) {
+			deferred = true;
+			allocateDeferredBuffers();
+		}
+		
+		if ((settings & GL_GUARD_BAND) == GL_GUARD_BAND)
+			guardbandclipping = true;
+		
 		if ((settings & GL_DEPTH) == GL_DEPTH) 
 			depthFunction = GL_LEQUAL;
+		
+		updatePipeline();
 	}
 	public void disable(int settings) {
 		if ((settings & GL_CULL_FACE) == GL_CULL_FACE)
 			cullfaces = false;
 		
+		if ((settings & GL_PARALLEL) == GL_PARALLEL)
+			parallel = false;
+		
+		if ((settings & GL_HALF_SPACE) == GL_HALF_SPACE)
+			halfspace = false;
+		
+		if ((settings & GL_DEPTH_HIERARCHY) == GL_DEPTH_HIERARCHY)
+			hierarchicaldepth = false;
+		
+		if ((settings & GL_DEFERRED) == GL_DEFERRED && deferred) {
+			resolve(); // Don't lose anything drawn so far
+			deferred = false;
+		}
+		
+		if ((settings & GL_GUARD_BAND) == GL_GUARD_BAND)
+			guardbandclipping = false;
+		
 		if ((settings & GL_DEPTH) == GL_DEPTH) 
 			depthFunction = GL_ALWAYS;
+		
+		updatePipeline();
 	}
 	
 	public void cullFace(int settings) {
@@ -134,6 +241,7 @@ public class Rasterizer {
 			case GL_MAX:
 			case GL_MIN:
 				blendFunction = function;
+				updatePipeline();
 		}
 	}
 	public void setDepthFunction(int function) {
@@ -147,26 +255,68 @@ public class Rasterizer {
 			case GL_ALWAYS:
 			case GL_NEVER:
 				depthFunction = function;
+				updatePipeline();
 		}
 	}
 	
-	public void clearFrameBuffer() {		
-		for (Color c : pixels)
-			c.set(clearColor);
+	// How far past the edges of the screen, in pixels, triangles may reach before they're clipped when GL_GUARD_BAND is enabled.
+	// Triangles are always clipped to znear and zfar
+	public void setGuardBand(float pixels) {
+		if (pixels < 0)
+			throw new IllegalArgumentException("Guard band can't be negative.");
+		
+		guardBand = pixels;
+		updatePipeline();
+	}
+	
+	// How many pixels a mesh's simplified surface may be out by on screen before a more detailed level of it is drawn instead.
+	// Only affects meshes with levels of detail, 0 always draws the full mesh
+	public void setLevelOfDetailError(float pixels) {
+		if (pixels < 0)
+			throw new IllegalArgumentException("Level of detail error can't be negative.");
+		
+		levelOfDetailError = pixels;
+	}
+	
+	private void updatePipeline() {
+		clipper.setGuardBand(guardbandclipping, -guardBand, -guardBand, width + guardBand, height + guardBand);
+		occlusiontest = hierarchicaldepth && (depthFunction == GL_LESS || depthFunction == GL_LEQUAL);
+	}
+	
+	// Width and height of the square screen tiles used when GL_PARALLEL is enabled
+	public void setTileSize(int size) {
+		if (size < 1)
+			throw new IllegalArgumentException("Tile size must be at least one pixel.");
+		
+		tileSize = size;
+	}
+	
+	public void clearFrameBuffer() {
+		Arrays.fill(pixels, clearColor);
+		
+		// Anything waiting to be shaded would have been cleared too
+		if (numsurfaces != 0) {
+			Arrays.fill(surfaceBuffer, -1);
+			numsurfaces = 0;
+		}
 	}
 	
 	public void clearDepthBuffer() {
-		for (int i=0; i<depthBuffer.length; i++)
-			depthBuffer[i] = Integer.MAX_VALUE;		
+		Arrays.fill(depthBuffer, Integer.MAX_VALUE);
+		depthHierarchy.clear(Integer.MAX_VALUE);
+		if (numsurfaces != 0)
+			Arrays.fill(destinationDepthBuffer, Integer.MAX_VALUE);
 	}
 	
 	public void swapBuffers() {
-		int[] outputpixels = ((DataBufferInt)framebuffer.getRaster().getDataBuffer()).getData(); // Pointer to buffer
-		for (int i=0; i<pixels.length; i++)
-			outputpixels[i] = pixels[i].toARGB();
+		resolve();
+		
+		// Pixels are already packed the way the framebuffer wants them
+		System.arraycopy(pixels, 0, outputpixels, 0, pixels.length);
 	}
 	
 	public void copyBufferToTexture(ImageTexture texture) {
+		resolve();
 		texture.copy(pixels);
 	}
 	
@@ -187,13 +337,19 @@ public class Rasterizer {
 		float inversediff = 1f / (zfar - znear); // Thousands of pixels. Multiplication is faster than division.
 		int i=0;
 		for (float depth : depthBuffer) {
+			if (depth > 1) { // Nothing drawn here
+				outputpixels[i++] = 0;
+				continue;
+			}
+			
+			// Depth is stored after projection, turn it back into distance along the view direction
+			float viewdepth = (znear * zfar) / (zfar - depth * (zfar - znear));
 			// Have to calculate the value as float for resolution, bytes are tiny
-			depth -= znear;
-			depth *= inversediff;
-			depth *= 255f;
-			depth += znear;
+			viewdepth -= znear;
+			viewdepth *= inversediff;
+			viewdepth *= 255f;
 			
-			outputpixels[i++] = (byte)(255-depth);
+			outputpixels[i++] = (byte)(255-viewdepth);
 		}
 		
 		return buffer;
@@ -201,25 +357,192 @@ public class Rasterizer {
 	
 	private void resize(int width, int height) {
 		int numpixels = width * height;
-		Color[] newpixels = new Color[numpixels];
-		// Preserve memory thrashing as much as possible
-		int pixel = 0;
-		// Copy existing pixels into new array
-		for (; pixel<Math.min(numpixels, pixels.length); pixel++) 
-			newpixels[pixel] = pixels[pixel]; //TODO: Set to clear color
-		// If there's still more pixels, have to create new ones on the end
-		for (; pixel<numpixels; pixel++)
-			newpixels[pixel] = new Color(clearColor);
-		
-		pixels = newpixels;
+		
+		pixels = new int[numpixels];
 		framebuffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		outputpixels = ((DataBufferInt)framebuffer.getRaster().getDataBuffer()).getData();
 		depthBuffer = new float[numpixels]; // No point copying primitives over
+		depthHierarchy = new DepthHierarchy(width, height, depthBuffer);
+		maincontext.setClip(0, 0, width, height);
+		bins = null;
+		if (deferred)
+			allocateDeferredBuffers();
+		clearFrameBuffer();
+	}
+	
+	// Draws the meshes in the scene the camera can see, in the order they were added
+	public void render(Scene scene, Camera camera) {
+		visiblemeshes.clear();
+		scene.getVisibleMeshes(camera.frustum, visiblemeshes);
+		for (Mesh mesh : visiblemeshes)
+			render(mesh, camera);
+	}
+	
+	// Draws the mesh once for each world matrix, in order, without moving the mesh itself.
+	// Instances outside the camera's view are skipped before any vertcies are transformed, and clusters of the rest are culled
+	// against the mesh in model space, so only the vertcies and faces that are drawn are moved and projected.
+	// With GL_PARALLEL enabled a batch of instances is culled and projected at once across the thread pool, then drawn one after another
+	public void renderInstanced(Mesh mesh, Matrix[] instanceTransforms, Camera camera) {
+		if (cullfaces && cullFaceMode == GL_FRONT_AND_BACK) return;
+		
+		int batchsize = parallel ? ThreadPool.getThreadCount() : 1;
+		Instance[] instances = getInstances(mesh, batchsize);
+		Mesh model = instances[0].model;
+		Vector3 camerapos = camera.getPosition();
+		
+		int next = 0;
+		while (next < instanceTransforms.length) {
+			int count = 0;
+			while (next < instanceTransforms.length && count < batchsize) {
+				Matrix matrix = instanceTransforms[next++];
+				Matrix.transformCoordinates(mesh.boundscentre, matrix, instancecentre);
+				if (camera.frustum.intersectsSphere(instancecentre, mesh.boundsradius * matrix.getMaxScale()))
+					instances[count++].matrix = matrix;
+			}
+			
+			if (count == 1)
+				prepareInstance(instances[0], model, camera, camerapos);
+			else if (count > 1)
+				ThreadPool.get().invoke(new InstanceTask(this, instances, model, camera, camerapos, 0, count));
+			
+			for (int i=0; i<count; i++)
+				drawInstance(instances[i]);
+		}
+		
+		// Let go of the matrices
+		for (Instance instance : instances) {
+			instance.matrix = null;
+			instance.mesh.worldmatrix = null;
+		}
+	}
+	
+	// One instance for each in a batch, sharing the mesh's geometry. They're kept for each mesh, so drawing a few
+	// meshes instanced in turn doesn't copy any of them again
+	Instance[] getInstances(Mesh mesh, int count) {
+		Instance[] instances = instancesets.get(mesh);
+		if (instances == null) {
+			// The copy of the mesh kept in model space, whose clusters the instances are culled with
+			instances = new Instance[] { new Instance(new Mesh(mesh)) };
+			instancesets.put(mesh, instances);
+		}
+		if (instances.length < count) {
+			int first = instances.length;
+			instances = Arrays.copyOf(instances, count);
+			for (int i=first; i<count; i++)
+				instances[i] = new Instance(instances[0].model);
+			instancesets.put(mesh, instances);
+		}
+		
+		// They may have been changed since last time
+		for (Instance instance : instances) {
+			instance.mesh.texture = mesh.texture;
+			instance.mesh.shader = mesh.shader;
+		}
+		
+		return instances;
+	}
+	
+	// Culls the instance's clusters and faces, then moves and projects the vertcies of the faces that are left.
+	// Only touches the instance, so a batch can be prepared at once
+	void prepareInstance(Instance instance, Mesh model, Camera camera, Vector3 camerapos) {
+		Mesh mesh = instance.mesh;
+		Matrix matrix = instance.matrix;
+		mesh.worldmatrix = matrix;
+		instance.reset();
+		
+		Matrix.multiply(matrix, camera.viewMatrix, instance.worldview);
+		Matrix.multiply(instance.worldview, camera.projectionMatrix, instance.transformmatrix);
+		instance.transformmatrix.multiply(screenmatrix);
+		
+		// The cone tests are done with the camera moved into model space instead, which a mirroring matrix turns inside out
+		matrix.Clone(instance.inverse);
+		instance.inverse.invert();
+		Matrix.transformCoordinates(camerapos, instance.inverse, instance.modelcamera);
+		int cullmode = cullFaceMode;
+		if (matrix.determinant() < 0)
+			cullmode = (cullmode == GL_BACK) ? GL_FRONT : GL_BACK;
+		
+		float scale = matrix.getMaxScale();
+		float[] spheres = model.clusterspheres, cones = model.clustercones;
+		boolean[] visibleclusters = instance.visibleclusters;
+		boolean anyvisible = false;
+		for (int cluster=0, numclusters = model.getNumClusters(); cluster<numclusters; cluster++) {
+			int i = cluster * 4;
+			instance.clustercentre.set(spheres[i], spheres[i + 1], spheres[i + 2]);
+			Matrix.transformCoordinates(instance.clustercentre, matrix, instance.worldcentre);
+			boolean visible = camera.frustum.intersectsSphere(instance.worldcentre, spheres[i + 3] * scale);
+			if (visible && cullfaces)
+				visible = !isClusterCulled(spheres, cones, i, instance.modelcamera, cullmode);
+			
+			visibleclusters[cluster] = visible;
+			anyvisible |= visible;
+		}
+		if (!anyvisible)
+			return;
+		
+		// Faces are culled in world space as render does, moving only their vertcies
+		int[] indices = model.indices, faceclusters = model.faceclusters, outcodes = instance.outcodes;
+		for (int face = 0, numfaces = model.getNumFaces(); face < numfaces; face++) {
+			if (!visibleclusters[faceclusters[face]])
+				continue;
+			
+			for (int corner=0; corner<3; corner++) {
+				int vertex = indices[face*3 + corner];
+				if (instance.transform(vertex))
+					mesh.transformVertex(vertex);
+			}
+			mesh.updateFace(face);
+			
+			if (cullfaces) {
+				float dot = dotFaceCenterToCam(mesh, face, camerapos, instance.aimdirection);
+				if (cullFaceMode == GL_BACK ? dot > 0 : dot < 0)
+					continue;
+			}
+			
+			for (int corner=0; corner<3; corner++) {
+				int vertex = indices[face*3 + corner];
+				if (!instance.project(vertex))
+					continue;
+				
+				mesh.projectVertex(vertex, instance.transformmatrix);
+				float[] homogeneous = mesh.homogeneousvertcies;
+				outcodes[vertex] = clipper.outcode(homogeneous[vertex*4], homogeneous[vertex*4 + 1], homogeneous[vertex*4 + 2], homogeneous[vertex*4 + 3]);
+			}
+			instance.faces[instance.numfaces++] = face;
+		}
+	}
+	
+	private void drawInstance(Instance instance) {
+		Mesh mesh = instance.mesh;
+		int numprimitives = 0;
+		for (int i=0; i<instance.numfaces; i++)
+			numprimitives = drawFace(mesh, instance.faces[i], instance.outcodes, numprimitives);
+		
+		if (parallel && numprimitives != 0)
+			drawParallel(numprimitives, mesh.shader);
 	}
 	
 	//TODO: Render to texture
 	public void render(Mesh mesh, Camera camera) {
 		if (cullfaces && cullFaceMode == GL_FRONT_AND_BACK) return;
 		
+		mesh.updateBounds();
+		
+		// Skip meshes entirely outside the camera's view before touching any of their vertcies
+		if (!camera.frustum.intersectsSphere(mesh.worldboundscentre, mesh.worldboundsradius)
+				|| !camera.frustum.intersectsBox(mesh.worldboundsmin, mesh.worldboundsmax))
+			return;
+		
+		if (mesh.getNumLevelsOfDetail() > 1)
+			mesh = getLevelOfDetail(mesh, camera);
+		// Only the level being drawn is moved
+		mesh.update();
+		
+		// Rule out whole clusters of faces that are outside the view or all facing the way being culled
+		Vector3 camerapos = camera.getPosition();
+		if (!cullClusters(mesh, camera.frustum, camerapos))
+			return;
+		
 		Matrix.multiply(mesh.worldmatrix, camera.viewMatrix, worldviewMatrix);
 		Matrix.multiply(worldviewMatrix, camera.projectionMatrix, transformMatrix);
 		
@@ -228,11 +551,24 @@ public class Rasterizer {
 		
 		mesh.projectVertcies(transformMatrix);
 		
-		for (Face face : mesh.faces) {
+		// Find which clipping planes each vertex is outside of
+		float[] homogeneous = mesh.homogeneousvertcies;
+		int numvertcies = mesh.getNumVertcies();
+		if (outcodes.length < numvertcies)
+			outcodes = new int[numvertcies];
+		for (int i=0; i<numvertcies; i++)
+			outcodes[i] = clipper.outcode(homogeneous[i*4], homogeneous[i*4 + 1], homogeneous[i*4 + 2], homogeneous[i*4 + 3]);
+		
+		int[] faceclusters = mesh.faceclusters;
+		int numprimitives = 0;
+		for (int face = 0, numfaces = mesh.getNumFaces(); face < numfaces; face++) {
+			if (!visibleclusters[faceclusters[face]])
+				continue;
+			
 			// Perform simple culling
 			// Cull front and/or back face as per settings if GL_CULL_FACE is enabled
 			if (cullfaces) {
-				float dot = dotFaceCenterToCam(mesh, face, camera);
+				float dot = dotFaceCenterToCam(mesh, face, camerapos, aimdirection);
 				switch (cullFaceMode) {
 					case GL_BACK: 
 						if (dot > 0)
@@ -245,373 +581,774 @@ public class Rasterizer {
 				}
 			}
 			
-			// More complex culling tests
-			currentFragment.set(
-					mesh.transformedvertcies[face.vertex1],
-					mesh.transformedvertcies[face.vertex2],
-					mesh.transformedvertcies[face.vertex3],
-					mesh.projectedvertcies[face.vertex1],
-					mesh.projectedvertcies[face.vertex2],
-					mesh.projectedvertcies[face.vertex3],
-					face.uv1,
-					face.uv2,
-					face.uv3,
-					mesh.texture
-					);
-			currentFragment.calculateboundingBox();
-			if (!currentFragment.isOnScreen(boundingbox)) continue;
+			numprimitives = drawFace(mesh, face, outcodes, numprimitives);
+		}
+		
+		if (parallel && numprimitives != 0)
+			drawParallel(numprimitives, mesh.shader);
+	}
+	
+	// Clips and submits a face that's passed culling. Returns how many primitives have been collected for the tiles
+	private int drawFace(Mesh mesh, int face, int[] outcodes, int numprimitives) {
+		// Skip triangles entirely outside one of the clipping planes
+		int[] indices = mesh.indices;
+		int 
+		outcode1 = outcodes[indices[face*3]],
+		outcode2 = outcodes[indices[face*3 + 1]],
+		outcode3 = outcodes[indices[face*3 + 2]];
+		if ((outcode1 & outcode2 & outcode3) != 0)
+			return numprimitives;
+		
+		int outcode = outcode1 | outcode2 | outcode3;
+		if (outcode == 0) {
+			// Triangles are drawn straight away unless they're being collected for the tiles
+			Primitive primitive = parallel ? getPrimitive(numprimitives) : currentFragment;
+			primitive.set(mesh, face);
+			return submit(primitive, face, mesh) ? numprimitives + 1 : numprimitives;
+		}
+		
+		// Crosses a clipping plane, draw the part inside as a fan of triangles
+		int numclipped = clipper.clip(mesh, face, outcode);
+		for (int i=2; i<numclipped; i++) {
+			Primitive primitive = parallel ? getPrimitive(numprimitives) : currentFragment;
+			primitive.set(clipper, 0, i-1, i, mesh.texture);
+			if (submit(primitive, face, mesh))
+				numprimitives++;
+		}
+		
+		return numprimitives;
+	}
+	
+	// Fills visibleclusters for the mesh. Returns whether any are
+	private boolean cullClusters(Mesh mesh, Frustum frustum, Vector3 camerapos) {
+		int numclusters = mesh.getNumClusters();
+		if (visibleclusters.length < numclusters)
+			visibleclusters = new boolean[numclusters];
+		
+		boolean anyvisible = false;
+		float[] spheres = mesh.clusterspheres, cones = mesh.clustercones;
+		for (int cluster=0; cluster<numclusters; cluster++) {
+			int i = cluster * 4;
+			clustercentre.set(spheres[i], spheres[i + 1], spheres[i + 2]);
+			boolean visible = frustum.intersectsSphere(clustercentre, spheres[i + 3]);
+			if (visible && cullfaces)
+				visible = !isClusterCulled(spheres, cones, i, camerapos, cullFaceMode);
 			
-			// Okay, draw it
-			if (mesh.shader != null) {
-				mesh.shader.texture = mesh.texture;
-				mesh.shader.faceNormal = face.normal;
-				mesh.shader.FaceCenter = face.center;
+			visibleclusters[cluster] = visible;
+			anyvisible |= visible;
+		}
+		
+		return anyvisible;
+	}
+	
+	// Whether every face in the cluster would fail the face culling test. Any direction from the camera to a point in the sphere
+	// is within asin(radius / distance) of the direction to its centre, and every normal is within the cone's angle of its axis,
+	// so all faces point away from the camera when those two angles and the one between the axis and centre add up to under 90 degrees
+	private boolean isClusterCulled(float[] spheres, float[] cones, int i, Vector3 camerapos, int cullmode) {
+		float coneangle = cones[i + 3];
+		if (coneangle >= Math.PI / 2)
+			return false;
+		
+		double 
+		x = spheres[i] - camerapos.x,
+		y = spheres[i + 1] - camerapos.y,
+		z = spheres[i + 2] - camerapos.z,
+		distance = Math.sqrt(x * x + y * y + z * z),
+		radius = spheres[i + 3];
+		if (distance <= radius)
+			return false;
+		
+		double 
+		cos = (x * cones[i] + y * cones[i + 1] + z * cones[i + 2]) / distance,
+		axisangle = Math.acos(Math.max(-1, Math.min(1, cos))),
+		spread = Math.asin(radius / distance) + coneangle + CLUSTER_CULL_MARGIN;
+		switch (cullmode) {
+			case GL_BACK:
+				return axisangle + spread < Math.PI / 2;
+			case GL_FRONT:
+				return (Math.PI - axisangle) + spread < Math.PI / 2;
+		}
+		
+		return false;
+	}
+	
+	// The simplest level of the mesh whose error would cover no more than levelOfDetailError pixels on screen
+	Mesh getLevelOfDetail(Mesh mesh, Camera camera) {
+		// Nearest the sphere gets to the camera
+		double distance = camera.getDistanceToCamera(mesh.worldboundscentre) - mesh.worldboundsradius;
+		if (distance <= camera.getZNear())
+			return mesh;
+		
+		// A unit across the view at that distance is projection[5] / distance in projected y, which the screen matrix scales by the height
+		double pixelsperunit = Math.abs(screenmatrix.get(5)) * camera.projectionMatrix.get(5) / distance * mesh.worldmatrix.getMaxScale();
+		int level = 0;
+		while (level + 1 < mesh.getNumLevelsOfDetail() 
+				&& mesh.getLevelOfDetailError(level + 1) * pixelsperunit <= levelOfDetailError)
+			level++;
+		
+		return mesh.getLevelOfDetail(level);
+	}
+	
+	// Finishes setting up a primitive, then draws it unless it's being collected for the tiles. Returns whether it was collected
+	private boolean submit(Primitive primitive, int face, Mesh mesh) {
+		// More complex culling tests
+		primitive.setFace(mesh, face);
+		primitive.calculateboundingBox();
+		if (!primitive.isOnScreen(boundingbox))
+			return false;
+		primitive.calculateGradients();
+		if (deferred)
+			primitive.surface = addSurface(primitive, mesh.shader, mesh.texture, blendFunction);
+		
+		if (parallel)
+			return true;
+		
+		// Okay, draw it
+		maincontext.shader = mesh.shader;
+		drawTriangle(primitive, maincontext);
+		return false;
+	}
+	
+	private Primitive getPrimitive(int index) {
+		if (index == primitives.size())
+			primitives.add(new Primitive());
+		
+		return primitives.get(index);
+	}
+	
+	// Sorts the primitives into the tiles they touch, then hands the tiles out to the thread pool.
+	// Each tile keeps primitives in submission order and every pixel belongs to exactly one tile,
+	// so the result is the same as drawing them one after another
+	private void drawParallel(int numprimitives, Shader shader) {
+		int 
+		tilesx = (width + tileSize - 1) / tileSize,
+		tilesy = (height + tileSize - 1) / tileSize,
+		numtiles = tilesx * tilesy;
+		if (bins == null || bins.length < numtiles) {
+			bins = new int[numtiles][16];
+			bincounts = new int[numtiles];
+		}
+		Arrays.fill(bincounts, 0);
+		
+		for (int i=0; i<numprimitives; i++) {
+			Primitive primitive = primitives.get(i);
+			int 
+			firsttilex = clamp(primitive.minx / tileSize, 0, tilesx-1),
+			lasttilex  = clamp(primitive.maxx / tileSize, 0, tilesx-1),
+			firsttiley = clamp(primitive.miny / tileSize, 0, tilesy-1),
+			lasttiley  = clamp(primitive.maxy / tileSize, 0, tilesy-1);
+			for (int tiley = firsttiley; tiley <= lasttiley; tiley++) {
+				for (int tilex = firsttilex; tilex <= lasttilex; tilex++) {
+					int tile = tiley * tilesx + tilex;
+					if (bincounts[tile] == bins[tile].length)
+						bins[tile] = Arrays.copyOf(bins[tile], bins[tile].length * 2);
+					bins[tile][bincounts[tile]++] = i;
+				}
 			}
-			drawTriangle(currentFragment, camera, mesh.shader);
 		}
+		
+		RasterContext[] contexts = getWorkerContexts();
+		// Shaders keep per-pixel state, so every worker needs its own
+		for (RasterContext context : contexts)
+			context.shader = (shader == null) ? null : shader.Clone();
+		
+		invokeTiles(contexts, numtiles);
 	}
 	
-	private float dotFaceCenterToCam(Mesh mesh, Face face, Camera camera) {
-		Vector3 aimdirection = camera.getAimDirection(face.center).normalize();
+	private RasterContext[] getWorkerContexts() {
+		int numworkers = ThreadPool.getThreadCount();
+		if (workercontexts == null || workercontexts.length != numworkers) {
+			workercontexts = new RasterContext[numworkers];
+			for (int i=0; i<workercontexts.length; i++)
+				workercontexts[i] = new RasterContext();
+		}
+		
+		return workercontexts;
+	}
+	
+	private void invokeTiles(RasterContext[] contexts, int numtiles) {
+		ThreadPool.get().invoke(new TileTask(this, contexts, 0, contexts.length, new AtomicInteger(), numtiles));
+	}
 	
-		return face.normal.dotProduct(aimdirection);
+	void drawTile(int tile, RasterContext context) {
+		int 
+		tilesx = (width + tileSize - 1) / tileSize,
+		minx = (tile % tilesx) * tileSize,
+		miny = (tile / tilesx) * tileSize;
+		context.setClip(minx, miny, Math.min(minx + tileSize, width), Math.min(miny + tileSize, height));
+		
+		if (resolving) {
+			resolveArea(context);
+			return;
+		}
+		
+		int[] bin = bins[tile];
+		for (int i=0; i<bincounts[tile]; i++)
+			drawTriangle(primitives.get(bin[i]), context);
 	}
-	private float dotCameraAimToFaceNormal(Mesh mesh, Face face, Camera camera) {
-		Vector3 aimdirection = camera.getAimDirection(facecenter).normalize();
 	
-		return face.normal.dotProduct(aimdirection);
+	private float dotFaceCenterToCam(Mesh mesh, int face, Vector3 camerapos, Vector3 aimdirection) {
+		int i = face * 3;
+		float[] normals = mesh.normals, centres = mesh.centres;
+		aimdirection.set(centres[i] - camerapos.x, centres[i+1] - camerapos.y, centres[i+2] - camerapos.z);
+		aimdirection.normalize();
+	
+		return normals[i] * aimdirection.x + normals[i+1] * aimdirection.y + normals[i+2] * aimdirection.z;
 	}
 
 	public void drawTriangle(Primitive f, Camera cam, Shader shader) {
-			Vector3 toppos 		= f.screentop;
-			Vector3 middlepos 	= f.screenmiddle;
-			Vector3 bottompos 	= f.screenbottom;
-			int top 	= (int)toppos.y;
-			int middle 	= (int)middlepos.y;
-			int bottom 	= (int)bottompos.y;
-
-			// Check if triangle is completely off screen
-			//TOOD: is this required now fragment has AABB?
-			if (bottom < 0 || top > height)
-				return;
-
-			// Crop start and end scanline of triangle to screen
-			middle = clamp(middle, 0, height);
-			bottom = clamp(bottom, 0, height);
-
-			float 	toptobottomdist 	= bottompos.y - toppos.y,
-					toptomiddledist 	= middlepos.y - toppos.y,
-					middletobottomdist 	= bottompos.y - middlepos.y,
-					screenstartx 		= toppos.x,
-					screenendx 			= toppos.x,
-					texturestartu 		= f.topVertexUV.u,
-					textureendu 		= f.topVertexUV.u,
-					texturestartv 		= f.topVertexUV.v,
-					textureendv 		= f.topVertexUV.v,
-					worldstartx			= f.worldtop.x,
-					worldendx			= f.worldtop.x,
-					worldstarty			= f.worldtop.y,
-					worldendy			= f.worldtop.y,
-					worldstartz 		= f.worldtop.z,
-					worldendz 			= f.worldtop.z;
-			if (f.middleOnRight()) { // Middle vertex on the right
-				float 	screenleftxslope  	= (bottompos.x - toppos.x) / toptobottomdist,
-						screenrightxslope 	= (middlepos.x - toppos.x) / toptomiddledist,
-						textureleftuslope  	= (f.bottomVertexUV.u - f.topVertexUV.u) / toptobottomdist,
-						texturerightuslope 	= (f.middleVertexUV.u - f.topVertexUV.u) / toptomiddledist,
-						textureleftvslope  	= (f.bottomVertexUV.v - f.topVertexUV.v) / toptobottomdist,
-						texturerightvslope 	= (f.middleVertexUV.v - f.topVertexUV.v) / toptomiddledist,
-						worldleftxslope  	= (f.worldbottom.x - f.worldtop.x) / toptobottomdist,
-						worldrightxslope 	= (f.worldmiddle.x - f.worldtop.x) / toptomiddledist,
-						worldleftyslope  	= (f.worldbottom.y - f.worldtop.y) / toptobottomdist,
-						worldrightyslope 	= (f.worldmiddle.y - f.worldtop.y) / toptomiddledist,
-						worldleftzslope  	= (f.worldbottom.z - f.worldtop.z) / toptobottomdist,
-						worldrightzslope 	= (f.worldmiddle.z - f.worldtop.z) / toptomiddledist;
-				if (top < 0) { // If top vertex is off screen
-					float difference = -top;
-					top = 0; // Start from top of screen instead
-					
-					// Start values as if we have already looped until that scanline
-					screenstartx 	+= screenleftxslope   * difference;
-					screenendx 		+= screenrightxslope  * difference;
-					texturestartu 	+= textureleftuslope  * difference;
-					textureendu 	+= texturerightuslope * difference;
-					texturestartv 	+= textureleftvslope  * difference;
-					textureendv 	+= texturerightvslope * difference;
-					worldstartx 	+= worldleftxslope  * difference;
-					worldendx 		+= worldrightxslope * difference;
-					worldstarty 	+= worldleftyslope  * difference;
-					worldendy 		+= worldrightyslope * difference;
-					worldstartz 	+= worldleftzslope  * difference;
-					worldendz 		+= worldrightzslope * difference;
-				}
-
-				int scanline = top;
-				for (; scanline < middle; scanline++) {
-					drawScanline(scanline, (int)screenstartx, (int)screenendx, worldstartx, worldendx, worldstarty, worldendy, worldstartz, worldendz, texturestartu, textureendu, texturestartv, textureendv, cam, f.texture, shader);
-
-					screenstartx 	+= screenleftxslope;
-					screenendx 		+= screenrightxslope;
-					texturestartu 	+= textureleftuslope;
-					textureendu 	+= texturerightuslope;
-					texturestartv 	+= textureleftvslope;
-					textureendv 	+= texturerightvslope;
-					worldstartx 	+= worldleftxslope;
-					worldendx 		+= worldrightxslope;
-					worldstarty 	+= worldleftyslope;
-					worldendy 		+= worldrightyslope;
-					worldstartz 	+= worldleftzslope;
-					worldendz 		+= worldrightzslope;
-				}
+		maincontext.shader = shader;
+		drawTriangle(f, maincontext);
+	}
+	void drawTriangle(Primitive f, RasterContext context) {
+		Shader shader = context.shader;
+		if (shader != null) {
+			shader.texture = f.texture;
+			shader.faceNormal = f.facenormal;
+			shader.FaceCenter = f.facecentre;
+		}
+		
+		// Area the triangle can touch. Max is exclusive
+		int 
+		minx = Math.max(f.minx, context.minx),
+		miny = Math.max(f.miny, context.miny),
+		maxx = Math.min(f.maxx, context.maxx),
+		maxy = Math.min(f.maxy, context.maxy);
+		if (minx >= maxx || miny >= maxy)
+			return;
+		
+		// Skip triangles entirely in front of znear or behind zfar
+		if (f.minimumDepth(minx, miny, maxx, maxy) > 1 || f.maximumDepth(minx, miny, maxx, maxy) < 0)
+			return;
+		
+		// Skip triangles hidden behind what's already been drawn
+		if (occlusiontest && depthHierarchy.isOccluded(f, minx, miny, maxx, maxy, depthFunction == GL_LEQUAL))
+			return;
+		
+		if (halfspace)
+			drawTriangleHalfSpace(f, minx, miny, maxx, maxy, context);
+		else
+			drawTriangleScanline(f, context);
+		
+		if (hierarchicaldepth)
+			depthHierarchy.refresh(minx, miny, maxx, maxy, context);
+	}
+	
+	// Edges are evaluated from the scanline's distance to the vertex rather than accumulated,
+	// so a triangle split across tiles gives exactly the same pixels as one drawn whole
+	private void drawTriangleScanline(Primitive f, RasterContext context) {
+		Vector3 toppos 		= f.screentop;
+		Vector3 middlepos 	= f.screenmiddle;
+		Vector3 bottompos 	= f.screenbottom;
+		int top 	= (int)toppos.y;
+		int middle 	= (int)middlepos.y;
+		int bottom 	= (int)bottompos.y;
 
-				screenrightxslope 	= (bottompos.x - middlepos.x) / middletobottomdist;
-				texturerightuslope 	= (f.bottomVertexUV.u - f.middleVertexUV.u) / middletobottomdist;
-				texturerightvslope 	= (f.bottomVertexUV.v - f.middleVertexUV.v) / middletobottomdist;
-				worldrightxslope 	= (f.worldbottom.x - f.worldmiddle.x) / middletobottomdist;
-				worldrightyslope 	= (f.worldbottom.y - f.worldmiddle.y) / middletobottomdist;
-				worldrightzslope 	= (f.worldbottom.z - f.worldmiddle.z) / middletobottomdist;
-				screenendx 			= middlepos.x;
-				textureendu = f.middleVertexUV.u;
-				textureendv = f.middleVertexUV.v;
-				worldendx 	= f.worldmiddle.x;
-				worldendy 	= f.worldmiddle.y;
-				worldendz 	= f.worldmiddle.z;
-				for (; scanline < bottom; scanline++) {
-					drawScanline(scanline, (int)screenstartx, (int)screenendx, worldstartx, worldendx, worldstarty, worldendy, worldstartz, worldendz, texturestartu, textureendu, texturestartv, textureendv, cam, f.texture, shader);
+		// Check if triangle is completely outside the area we're drawing to
+		if (bottom < context.miny || top >= context.maxy)
+			return;
 
-					screenstartx 	+= screenleftxslope;
-					screenendx 		+= screenrightxslope;
-					texturestartu 	+= textureleftuslope;
-					textureendu 	+= texturerightuslope;
-					texturestartv 	+= textureleftvslope;
-					textureendv 	+= texturerightvslope;
-					worldstartx 	+= worldleftxslope;
-					worldendx 		+= worldrightxslope;
-					worldstarty 	+= worldleftyslope;
-					worldendy 		+= worldrightyslope;
-					worldstartz 	+= worldleftzslope;
-					worldendz 		+= worldrightzslope;
-				}
-			} else {
-				float 	screenleftxslope  	= (middlepos.x - toppos.x) / toptomiddledist,
-						screenrightxslope 	= (bottompos.x - toppos.x) / toptobottomdist,
-						textureleftuslope  	= (f.middleVertexUV.u - f.topVertexUV.u) / toptomiddledist,
-						texturerightuslope 	= (f.bottomVertexUV.u - f.topVertexUV.u) / toptobottomdist,
-						textureleftvslope  	= (f.middleVertexUV.v - f.topVertexUV.v) / toptomiddledist,
-						texturerightvslope 	= (f.bottomVertexUV.v - f.topVertexUV.v) / toptobottomdist,
-						worldleftxslope  	= (f.worldmiddle.x - f.worldtop.x) / toptomiddledist,
-						worldrightxslope 	= (f.worldbottom.x - f.worldtop.x) / toptobottomdist,
-						worldleftyslope  	= (f.worldmiddle.y - f.worldtop.y) / toptomiddledist,
-						worldrightyslope 	= (f.worldbottom.y - f.worldtop.y) / toptobottomdist,
-						worldleftzslope  	= (f.worldmiddle.z - f.worldtop.z) / toptomiddledist,
-						worldrightzslope 	= (f.worldbottom.z - f.worldtop.z) / toptobottomdist;
-				if (top < 0) { // If top vertex is off screen
-					float difference = -top;
-					top = 0; // Start from top of screen instead
+		// How many pixels to move across to move down by 1 pixel
+		float 	longxslope  = (bottompos.x - toppos.x) / (bottompos.y - toppos.y), // Top to bottom
+				upperxslope = (middlepos.x - toppos.x) / (middlepos.y - toppos.y), // Top to middle
+				lowerxslope = (bottompos.x - middlepos.x) / (bottompos.y - middlepos.y); // Middle to bottom
+		boolean middleonright = f.middleOnRight();
+		
+		// Crop start and end scanline of triangle to the drawing area
+		int firstscanline = Math.max(top, context.miny);
+		int lastscanline = Math.min(bottom, context.maxy);
+		for (int scanline = firstscanline; scanline < lastscanline; scanline++) {
+			float longx = toppos.x + longxslope * (scanline - top);
+			float shortx = (scanline < middle) 
+					? toppos.x + upperxslope * (scanline - top)
+					: middlepos.x + lowerxslope * (scanline - middle);
+			
+			int startx = middleonright ? (int)longx : (int)shortx;
+			int endx = middleonright ? (int)shortx : (int)longx;
+			drawSpan(scanline, Math.max(startx, context.minx), Math.min(endx, context.maxx), f, context);
+		}
+	}
+	
+	// Half-space rasterizer. Walks the triangle's bounding box in 8x8 blocks, skipping blocks that lie
+	// outside an edge and filling blocks that lie inside all three edges without testing each pixel.
+	// Pixels are sampled at their centres, with a top-left fill rule so shared edges are drawn once
+	private void drawTriangleHalfSpace(Primitive f, int minx, int miny, int maxx, int maxy, RasterContext context) {
+		Vector3 
+		p0 = f.screentop,
+		p1 = f.screenmiddle,
+		p2 = f.screenbottom;
+		
+		float area = (p1.x - p0.x) * (p2.y - p0.y) - (p1.y - p0.y) * (p2.x - p0.x);
+		if (!(area != 0)) // Degenerate, or NaN
+			return;
+		if (area < 0) { // Wind clockwise on screen so the inside of every edge is positive
+			Vector3 tempvertex = p1;
+			p1 = p2;
+			p2 = tempvertex;
+		}
+		
+		// Edge functions, e(x,y) = a*x + b*y + c. Edge 0 is opposite p0 and so on
+		float 
+		edge0a = p1.y - p2.y, edge0b = p2.x - p1.x, edge0c = p1.x * p2.y - p1.y * p2.x,
+		edge1a = p2.y - p0.y, edge1b = p0.x - p2.x, edge1c = p2.x * p0.y - p2.y * p0.x,
+		edge2a = p0.y - p1.y, edge2b = p1.x - p0.x, edge2c = p0.x * p1.y - p0.y * p1.x;
+		// Samples exactly on an edge are only drawn if it's a top or left edge
+		boolean 
+		edge0topleft = edge0a > 0 || (edge0a == 0 && edge0b > 0),
+		edge1topleft = edge1a > 0 || (edge1a == 0 && edge1b > 0),
+		edge2topleft = edge2a > 0 || (edge2a == 0 && edge2b > 0);
+		
+		// Blocks are aligned to the screen, not the triangle, so tiles see the same blocks
+		for (int blocky = miny & ~(BLOCK_SIZE-1); blocky < maxy; blocky += BLOCK_SIZE) {
+			for (int blockx = minx & ~(BLOCK_SIZE-1); blockx < maxx; blockx += BLOCK_SIZE) {
+				// Sample positions of the block's corner pixels
+				float 
+				left = blockx + 0.5f,
+				top = blocky + 0.5f,
+				right = left + (BLOCK_SIZE-1),
+				bottom = top + (BLOCK_SIZE-1);
+				
+				int coverage = blockCoverage(edge0a, edge0b, edge0c, left, top, right, bottom);
+				if (coverage == OUTSIDE) continue;
+				int edge1coverage = blockCoverage(edge1a, edge1b, edge1c, left, top, right, bottom);
+				if (edge1coverage == OUTSIDE) continue;
+				int edge2coverage = blockCoverage(edge2a, edge2b, edge2c, left, top, right, bottom);
+				if (edge2coverage == OUTSIDE) continue;
+				boolean fullycovered = coverage == INSIDE && edge1coverage == INSIDE && edge2coverage == INSIDE;
+				
+				int 
+				firstx = Math.max(blockx, minx),
+				firsty = Math.max(blocky, miny),
+				lastx = Math.min(blockx + BLOCK_SIZE, maxx),
+				lasty = Math.min(blocky + BLOCK_SIZE, maxy);
+				if (occlusiontest && depthHierarchy.isFineOccluded(f, firstx, firsty, lastx, lasty, depthFunction == GL_LEQUAL))
+					continue;
+				for (int y = firsty; y < lasty; y++) {
+					if (fullycovered) {
+						drawSpan(y, firstx, lastx, f, context);
+						continue;
+					}
 					
-					// Start values as if we have already looped until that scanline
-					screenstartx 	+= screenleftxslope   * difference;
-					screenendx 		+= screenrightxslope  * difference;
-					texturestartu 	+= textureleftuslope  * difference;
-					textureendu 	+= texturerightuslope * difference;
-					texturestartv 	+= textureleftvslope  * difference;
-					textureendv 	+= texturerightvslope * difference;
-					worldstartx 	+= worldleftxslope  * difference;
-					worldendx 		+= worldrightxslope * difference;
-					worldstarty 	+= worldleftyslope  * difference;
-					worldendy 		+= worldrightyslope * difference;
-					worldstartz 	+= worldleftzslope  * difference;
-					worldendz 		+= worldrightzslope * difference;
-				}
-
-				int scanline = top;
-				for (; scanline < middle; scanline++) {
-					drawScanline(scanline, (int)screenstartx, (int)screenendx, worldstartx, worldendx, worldstarty, worldendy, worldstartz, worldendz, texturestartu, textureendu, texturestartv, textureendv, cam, f.texture, shader);
-
-					screenstartx 	+= screenleftxslope;
-					screenendx 		+= screenrightxslope;
-					texturestartu 	+= textureleftuslope;
-					textureendu 	+= texturerightuslope;
-					texturestartv 	+= textureleftvslope;
-					textureendv 	+= texturerightvslope;
-					worldstartx 	+= worldleftxslope;
-					worldendx 		+= worldrightxslope;
-					worldstarty 	+= worldleftyslope;
-					worldendy 		+= worldrightyslope;
-					worldstartz 	+= worldleftzslope;
-					worldendz 		+= worldrightzslope;
-				}
-
-				screenleftxslope 	= (bottompos.x - middlepos.x) / middletobottomdist;
-				textureleftuslope 	= (f.bottomVertexUV.u - f.middleVertexUV.u) / middletobottomdist;
-				textureleftvslope 	= (f.bottomVertexUV.v - f.middleVertexUV.v) / middletobottomdist;
-				worldleftxslope 	= (f.worldbottom.x - f.worldmiddle.x) / middletobottomdist;
-				worldleftyslope 	= (f.worldbottom.y - f.worldmiddle.y) / middletobottomdist;
-				worldleftzslope 	= (f.worldbottom.z - f.worldmiddle.z) / middletobottomdist;
-				screenstartx 		= middlepos.x;
-				texturestartu 	= f.middleVertexUV.u;
-				texturestartv 	= f.middleVertexUV.v;
-				worldstartx 	= f.worldmiddle.x;
-				worldstarty 	= f.worldmiddle.y;
-				worldstartz 	= f.worldmiddle.z;
-				for (; scanline < bottom; scanline++) {
-					drawScanline(scanline, (int)screenstartx, (int)screenendx, worldstartx, worldendx, worldstarty, worldendy, worldstartz, worldendz, texturestartu, textureendu, texturestartv, textureendv, cam, f.texture, shader);
-
-					screenstartx 	+= screenleftxslope;
-					screenendx 		+= screenrightxslope;
-					texturestartu 	+= textureleftuslope;
-					textureendu 	+= texturerightuslope;
-					texturestartv 	+= textureleftvslope;
-					textureendv 	+= texturerightvslope;
-					worldstartx 	+= worldleftxslope;
-					worldendx 		+= worldrightxslope;
-					worldstarty 	+= worldleftyslope;
-					worldendy 		+= worldrightyslope;
-					worldstartz 	+= worldleftzslope;
-					worldendz 		+= worldrightzslope;
+					// A triangle covers a single run of each row, so find where it starts and ends
+					float 
+					sampley = y + 0.5f,
+					edge0row = edge0b * sampley + edge0c,
+					edge1row = edge1b * sampley + edge1c,
+					edge2row = edge2b * sampley + edge2c;
+					int runstart = -1, runend = lastx;
+					for (int x = firstx; x < lastx; x++) {
+						float samplex = x + 0.5f;
+						boolean inside = 
+								isInsideEdge(edge0a * samplex + edge0row, edge0topleft) &&
+								isInsideEdge(edge1a * samplex + edge1row, edge1topleft) &&
+								isInsideEdge(edge2a * samplex + edge2row, edge2topleft);
+						if (inside && runstart == -1) {
+							runstart = x;
+						} else if (!inside && runstart != -1) {
+							runend = x;
+							break;
+						}
+					}
+					if (runstart != -1)
+						drawSpan(y, runstart, runend, f, context);
 				}
 			}
-	}
-
-	private void drawScanline(int y, int screenstartx, int screenendx, float worldstartx, float worldendx, float worldstarty, float worldendy, float worldstartz, float worldendz, float texturestartu, float textureendu, float texturestartv, float textureendv, Camera camera, Texture tex, Shader shader) {
-		// How much difference in attributes per pixel
-		float scanlinelength = screenendx - screenstartx;
-		float uslope = (textureendu - texturestartu)/ scanlinelength;
-		float vslope = (textureendv - texturestartv)/ scanlinelength;
-		float xslope = (worldendx - worldstartx) 	/ scanlinelength;
-		float yslope = (worldendy - worldstarty) 	/ scanlinelength;
-		float zslope = (worldendz - worldstartz) 	/ scanlinelength;
-		
-		float u = texturestartu;
-		float v = texturestartv;
-		float worldx = worldstartx;
-		float worldy = worldstarty;
-		float worldz = worldstartz;
-		// Clip start and end to screen
-		if (screenstartx < 0) {
-			float difference = -screenstartx;
-			screenstartx = 0;
-			
-			// Move start UV and depth position to where they would be now startx has moved
-			u 		+= uslope * difference;
-			v 		+= vslope * difference;
-			worldx 	+= xslope * difference;
-			worldy 	+= yslope * difference;
-			worldz 	+= zslope * difference;
 		}
-		// End early if goes off screen
-		if (screenendx > width)
-			screenendx = width;
+	}
+	
+	// Edges are linear, so testing the corners tells us about the whole block
+	private static int blockCoverage(float a, float b, float c, float left, float top, float right, float bottom) {
+		float 
+		topleft 	= a * left 	+ b * top 	 + c,
+		topright 	= a * right + b * top 	 + c,
+		bottomleft 	= a * left 	+ b * bottom + c,
+		bottomright = a * right + b * bottom + c;
 		
+		if (topleft < 0 && topright < 0 && bottomleft < 0 && bottomright < 0)
+			return OUTSIDE;
+		if (topleft > 0 && topright > 0 && bottomleft > 0 && bottomright > 0)
+			return INSIDE;
+		return PARTIAL;
+	}
+	
+	private static boolean isInsideEdge(float edge, boolean topleft) {
+		return edge > 0 || (edge == 0 && topleft);
+	}
+	
+	// Draws pixels firstx to lastx (exclusive) of a row, sampled at their centres.
+	// Attributes come from the primitive's plane equations, and everything but depth is
+	// divided by the interpolated 1/w so textures and world positions are perspective correct
+	private void drawSpan(int y, int firstx, int lastx, Primitive f, RasterContext context) {
+		if (firstx >= lastx || depthFunction == GL_NEVER) // Nothing would be drawn
+			return;
 		
+		// Projected depth runs from 0 at znear to 1 at zfar. It only ever rises or falls along a span,
+		// so the ends tell us if all of it is in range, and if not where the part that is starts and ends
 		float 
-		znear = camera.getZNear(),
-		zfar = camera.getZFar();
-		//TODO: Check if any of the scanline is in depth range
-		for (int x = screenstartx; x < screenendx; x++) {
-			worldx 	+= xslope;
-			worldy 	+= yslope;
-			worldz 	+= zslope;
-			u 		+= uslope;
-			v 		+= vslope;
-			
-			worldpos.set(worldx, worldy, worldz);
-			float distance = (float)camera.getDistanceToCamera(worldpos);
-			
-			int pixelindex = getPixelIndex(x, y, distance, znear, zfar);
-			if (pixelindex == -1) 
-				continue;
-			if (!testDepth(pixelindex, distance))
-				continue;
-			
-			
-			if (shader != null) {
-				shader.destinationDepth = depthBuffer[pixelindex];
-				shader.sourceDepth = distance;
-				shader.screenX = x;
-				shader.screenY = y;
-				shader.u = u;
-				shader.v = v;
-				shader.worldPosition = worldpos;
-				shader.destinationColor.set(pixels[pixelindex]);
-				shader.shade();
-				
-				pixels[pixelindex].set(shader.sourceColor);
-				depthBuffer[pixelindex] = shader.sourceDepth;				
+		firstdepth = f.depthAt(firstx, y),
+		lastdepth = f.depthAt(lastx-1, y);
+		if (!isInDepthRange(firstdepth) || !isInDepthRange(lastdepth)) {
+			if (lastdepth > firstdepth) {
+				firstx = findDepth(f, y, firstx, lastx, 0, true, true);
+				lastx = findDepth(f, y, firstx, lastx, 1, true, false);
 			} else {
-				Color pixelcolor = tex.map(u, v);
-				setPixel(pixelindex,
-						 pixelcolor
-					);
-				depthBuffer[pixelindex] = distance;
+				firstx = findDepth(f, y, firstx, lastx, 1, false, true);
+				lastx = findDepth(f, y, firstx, lastx, 0, false, false);
 			}
-			
+			if (firstx >= lastx)
+				return;
 		}
+		
+		// Trim off ends of the span hidden behind what's already been drawn
+		if (occlusiontest) {
+			boolean lessequal = depthFunction == GL_LEQUAL;
+			while (firstx < lastx) {
+				int cellend = Math.min(((firstx >> DepthHierarchy.FINE_SHIFT) + 1) << DepthHierarchy.FINE_SHIFT, lastx);
+				if (!depthHierarchy.isFineOccluded(f, firstx, y, cellend, y+1, lessequal))
+					break;
+				firstx = cellend;
+			}
+			while (firstx < lastx) {
+				int cellstart = Math.max(((lastx-1) >> DepthHierarchy.FINE_SHIFT) << DepthHierarchy.FINE_SHIFT, firstx);
+				if (!depthHierarchy.isFineOccluded(f, cellstart, y, lastx, y+1, lessequal))
+					break;
+				lastx = cellstart;
+			}
+			if (firstx >= lastx)
+				return;
+		}
+		
+		if (hierarchicaldepth)
+			depthHierarchy.markDirty(y, firstx, lastx);
+		
+		// Each target gets its own loop so none of them check which one they're writing to per pixel
+		if (deferred)
+			drawSpanDeferred(y, firstx, lastx, f, context.span);
+		else if (context.shader != null)
+			drawSpanShaded(y, firstx, lastx, f, context);
+		else
+			drawSpanTextured(y, firstx, lastx, f);
 	}
 	
-	private int getPixelIndex(int x, int y, float z, float znear, float zfar) {
-		if (x > width)
-			return -1;
-		if (y > height)
-			return -1;
-		
-		if (z > zfar)
-			return -1;
-		if (z < znear)
-			return -1;
+	// The pixels from firstx to lastx (exclusive) passing the depth test, picked out into the span by the loop for the depth function
+	private int collectSpan(int y, int firstx, int lastx, Primitive f, Span span) {
+		span.ensureCapacity(lastx - firstx);
+		return DepthTest.collect(depthFunction, depthBuffer, y * width, firstx, lastx, 
+				f.depth + f.ddepthdy * (y + 0.5f - f.originy), f.ddepthdx, f.originx, span.screenX, span.sourceDepth);
+	}
+	
+	// Just remember what's at each pixel, it gets shaded in resolve()
+	private void drawSpanDeferred(int y, int firstx, int lastx, Primitive f, Span span) {
+		int length = collectSpan(y, firstx, lastx, f, span);
+		if (length == 0)
+			return;
 		
-		int pixelindex = y*width + x;
+		float 
+		offsety = y + 0.5f - f.originy,
+		inversewrow = f.inversew + f.dinversewdy * offsety,
+		urow 		= f.u 		 + f.dudy 		 * offsety,
+		vrow 		= f.v 		 + f.dvdy 		 * offsety,
+		worldxrow 	= f.worldx 	 + f.dworldxdy 	 * offsety,
+		worldyrow 	= f.worldy 	 + f.dworldydy 	 * offsety,
+		worldzrow 	= f.worldz 	 + f.dworldzdy 	 * offsety;
 		
-		return pixelindex;
+		boolean filtered = f.texture != null && f.texture.isFiltered();
+		int rowindex = y * width;
+		for (int i = 0; i < length; i++) {
+			int x = span.screenX[i];
+			float offsetx = x + 0.5f - f.originx;
+			int pixelindex = rowindex + x;
+			
+			float w = 1f / (inversewrow + f.dinversewdx * offsetx);
+			float u = (urow + f.dudx * offsetx) * w, v = (vrow + f.dvdx * offsetx) * w;
+			if (surfaceBuffer[pixelindex] == -1)
+				destinationDepthBuffer[pixelindex] = depthBuffer[pixelindex];
+			depthBuffer[pixelindex] = span.sourceDepth[i];
+			surfaceBuffer[pixelindex] = f.surface;
+			uBuffer[pixelindex] = u;
+			vBuffer[pixelindex] = v;
+			lodBuffer[pixelindex] = filtered ? getTextureLevelOfDetail(f, u, v, w) : 0;
+			worldxBuffer[pixelindex] = (worldxrow + f.dworldxdx * offsetx) * w;
+			worldyBuffer[pixelindex] = (worldyrow + f.dworldydx * offsetx) * w;
+			worldzBuffer[pixelindex] = (worldzrow + f.dworldzdx * offsetx) * w;
+		}
 	}
 	
-	private boolean testDepth(int index, float sourcez) {
-		switch(depthFunction) {
-			case GL_ALWAYS: return true;
-			case GL_NEVER: 	return false;
+	// Fills in the rest of the span for the pixels that passed, then shades them all at once
+	private void drawSpanShaded(int y, int firstx, int lastx, Primitive f, RasterContext context) {
+		Span span = context.span;
+		int length = collectSpan(y, firstx, lastx, f, span);
+		if (length == 0)
+			return;
+		
+		float 
+		offsety = y + 0.5f - f.originy,
+		inversewrow = f.inversew + f.dinversewdy * offsety,
+		urow 		= f.u 		 + f.dudy 		 * offsety,
+		vrow 		= f.v 		 + f.dvdy 		 * offsety,
+		worldxrow 	= f.worldx 	 + f.dworldxdy 	 * offsety,
+		worldyrow 	= f.worldy 	 + f.dworldydy 	 * offsety,
+		worldzrow 	= f.worldz 	 + f.dworldzdy 	 * offsety;
+		
+		boolean filtered = f.texture != null && f.texture.isFiltered();
+		int rowindex = y * width;
+		for (int i = 0; i < length; i++) {
+			int x = span.screenX[i];
+			float offsetx = x + 0.5f - f.originx;
+			int pixelindex = rowindex + x;
+			
+			float w = 1f / (inversewrow + f.dinversewdx * offsetx);
+			float u = (urow + f.dudx * offsetx) * w, v = (vrow + f.dvdx * offsetx) * w;
+			span.u[i] = u;
+			span.v[i] = v;
+			span.lod[i] = filtered ? getTextureLevelOfDetail(f, u, v, w) : 0;
+			span.worldX[i] = (worldxrow + f.dworldxdx * offsetx) * w;
+			span.worldY[i] = (worldyrow + f.dworldydx * offsetx) * w;
+			span.worldZ[i] = (worldzrow + f.dworldzdx * offsetx) * w;
+			span.destinationDepth[i] = depthBuffer[pixelindex];
+			span.destinationColor[i] = pixels[pixelindex];
 		}
 		
-		float destz = depthBuffer[index];
+		span.screenY = y;
+		span.length = length;
+		context.shader.shadeSpan(span);
 		
-		switch(depthFunction) {
+		for (int i = 0; i < length; i++) {
+			int pixelindex = rowindex + span.screenX[i];
+			pixels[pixelindex] = span.sourceColor[i];
+			depthBuffer[pixelindex] = span.sourceDepth[i];
+		}
+	}
+	
+	// Texturing is most of the drawing, so it doesn't go through a span buffer. Each depth function gets its own loop
+	private void drawSpanTextured(int y, int firstx, int lastx, Primitive f) {
+		float 
+		offsety = y + 0.5f - f.originy,
+		depthrow 	= f.depth 	 + f.ddepthdy 	 * offsety,
+		inversewrow = f.inversew + f.dinversewdy * offsety,
+		urow 		= f.u 		 + f.dudy 		 * offsety,
+		vrow 		= f.v 		 + f.dvdy 		 * offsety;
+		
+		int rowindex = y * width;
+		switch (depthFunction) {
 			case GL_LESS:
-				return sourcez < destz;
+				for (int x = firstx; x < lastx; x++) {
+					float depth = depthrow + f.ddepthdx * (x + 0.5f - f.originx);
+					if (depth < depthBuffer[rowindex + x])
+						drawPixelTextured(x, rowindex + x, depth, inversewrow, urow, vrow, f);
+				}
+				break;
 			case GL_LEQUAL:
-				return sourcez <= destz;
+				for (int x = firstx; x < lastx; x++) {
+					float depth = depthrow + f.ddepthdx * (x + 0.5f - f.originx);
+					if (depth <= depthBuffer[rowindex + x])
+						drawPixelTextured(x, rowindex + x, depth, inversewrow, urow, vrow, f);
+				}
+				break;
 			case GL_GREATER:
-				return sourcez > destz;
+				for (int x = firstx; x < lastx; x++) {
+					float depth = depthrow + f.ddepthdx * (x + 0.5f - f.originx);
+					if (depth > depthBuffer[rowindex + x])
+						drawPixelTextured(x, rowindex + x, depth, inversewrow, urow, vrow, f);
+				}
+				break;
 			case GL_GEQUAL:
-				return sourcez >= destz;
+				for (int x = firstx; x < lastx; x++) {
+					float depth = depthrow + f.ddepthdx * (x + 0.5f - f.originx);
+					if (depth >= depthBuffer[rowindex + x])
+						drawPixelTextured(x, rowindex + x, depth, inversewrow, urow, vrow, f);
+				}
+				break;
 			case GL_EQUAL:
-				return sourcez == destz;
+				for (int x = firstx; x < lastx; x++) {
+					float depth = depthrow + f.ddepthdx * (x + 0.5f - f.originx);
+					if (depth == depthBuffer[rowindex + x])
+						drawPixelTextured(x, rowindex + x, depth, inversewrow, urow, vrow, f);
+				}
+				break;
 			case GL_NOTEQUAL:
-				return sourcez != destz;
+				for (int x = firstx; x < lastx; x++) {
+					float depth = depthrow + f.ddepthdx * (x + 0.5f - f.originx);
+					if (depth != depthBuffer[rowindex + x])
+						drawPixelTextured(x, rowindex + x, depth, inversewrow, urow, vrow, f);
+				}
+				break;
+			case GL_ALWAYS:
+				for (int x = firstx; x < lastx; x++)
+					drawPixelTextured(x, rowindex + x, depthrow + f.ddepthdx * (x + 0.5f - f.originx), inversewrow, urow, vrow, f);
+				break;
+		}
+	}
+	
+	// Small enough to be inlined into each of the loops above
+	private void drawPixelTextured(int x, int pixelindex, float depth, float inversewrow, float urow, float vrow, Primitive f) {
+		float offsetx = x + 0.5f - f.originx;
+		float w = 1f / (inversewrow + f.dinversewdx * offsetx);
+		float u = (urow + f.dudx * offsetx) * w, v = (vrow + f.dvdx * offsetx) * w;
+		Texture tex = f.texture;
+		int colour = tex.isFiltered() ? tex.mapARGB(u, v, getTextureLevelOfDetail(f, u, v, w)) : tex.mapARGB(u, v);
+		pixels[pixelindex] = blendFunction == GL_FUNC_SET ? colour : Blender.blend(blendFunction, pixels[pixelindex], colour);
+		depthBuffer[pixelindex] = depth;
+	}
+	
+	// Level of detail of the primitive's texture at a pixel. u and v are what's interpolated over w, so how fast they change across
+	// the screen comes from the quotient rule, (d(u/w)/dx - u * d(1/w)/dx) * w
+	private static float getTextureLevelOfDetail(Primitive f, float u, float v, float w) {
+		return f.texture.getLevelOfDetail(
+				(f.dudx - u * f.dinversewdx) * w, (f.dvdx - v * f.dinversewdx) * w,
+				(f.dudy - u * f.dinversewdy) * w, (f.dvdy - v * f.dinversewdy) * w
+			);
+	}
+	
+	private static boolean isInDepthRange(float depth) {
+		return depth >= 0 && depth <= 1;
+	}
+	
+	// Binary search along a span for the first pixel whose depth has reached a limit, lastx if none have.
+	// Only works because depth never changes direction along a span
+	private static int findDepth(Primitive f, int y, int firstx, int lastx, float limit, boolean rising, boolean inclusive) {
+		int low = firstx, high = lastx;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			float depth = f.depthAt(middle, y);
+			boolean reached = rising 
+					? (inclusive ? depth >= limit : depth > limit)
+					: (inclusive ? depth <= limit : depth < limit);
+			if (reached)
+				high = middle;
+			else
+				low = middle + 1;
 		}
 		
-		// Something went hideously wrong
-		return false;
+		return low;
 	}
 	
-	private void setPixel(int pixelindex, Color color) {
-		switch(blendFunction) {
-			case GL_FUNC_SET:
-				pixels[pixelindex].set(color);
-				break;
-			case GL_FUNC_ADD:
-				pixels[pixelindex].add(color);
-				break;
-			case GL_FUNC_SUBTRACT:
-				pixels[pixelindex].subtract(color);
-				break;
-			case GL_FUNC_REVERSE_SUBTRACT:
-				pixels[pixelindex].reverseSubtract(color);
-				break;
-			case GL_MIN:
-				pixels[pixelindex].min(color);
-				break;
-			case GL_MAX:
-				pixels[pixelindex].max(color);
-				break;
+	private void allocateDeferredBuffers() {
+		int numpixels = width * height;
+		surfaceBuffer = new int[numpixels];
+		Arrays.fill(surfaceBuffer, -1);
+		uBuffer = new float[numpixels];
+		vBuffer = new float[numpixels];
+		lodBuffer = new float[numpixels];
+		worldxBuffer = new float[numpixels];
+		worldyBuffer = new float[numpixels];
+		worldzBuffer = new float[numpixels];
+		destinationDepthBuffer = new float[numpixels];
+		numsurfaces = 0;
+	}
+	
+	private int addSurface(Primitive primitive, Shader shader, Texture texture, int blendfunction) {
+		if (numsurfaces == surfaceShaders.length) {
+			int size = Math.max(numsurfaces * 2, 256);
+			surfaceNormals = Arrays.copyOf(surfaceNormals, size * 3);
+			surfaceCentres = Arrays.copyOf(surfaceCentres, size * 3);
+			surfaceShaders = Arrays.copyOf(surfaceShaders, size);
+			surfaceTextures = Arrays.copyOf(surfaceTextures, size);
+			surfaceBlendFunctions = Arrays.copyOf(surfaceBlendFunctions, size);
+		}
+		
+		// The primitive is reused, so keep a copy
+		int i = numsurfaces * 3;
+		surfaceNormals[i] 	  = primitive.facenormal.x;
+		surfaceNormals[i + 1] = primitive.facenormal.y;
+		surfaceNormals[i + 2] = primitive.facenormal.z;
+		surfaceCentres[i] 	  = primitive.facecentre.x;
+		surfaceCentres[i + 1] = primitive.facecentre.y;
+		surfaceCentres[i + 2] = primitive.facecentre.z;
+		surfaceShaders[numsurfaces] = shader;
+		surfaceTextures[numsurfaces] = texture;
+		surfaceBlendFunctions[numsurfaces] = blendfunction;
+		return numsurfaces++;
+	}
+	
+	// Shades every pixel drawn since the last resolve while GL_DEFERRED was enabled.
+	// Called by swapBuffers, so only needed when reading pixels some other way.
+	// Shaders see the colour and depth that were under the deferred surfaces as the destination,
+	// and surfaces without a shader are blended with the blend function they were drawn with
+	public void resolve() {
+		if (numsurfaces == 0)
+			return;
+		
+		if (parallel) {
+			RasterContext[] contexts = getWorkerContexts();
+			for (RasterContext context : contexts)
+				context.clearShaders();
+			
+			resolving = true;
+			invokeTiles(contexts, ((width + tileSize - 1) / tileSize) * ((height + tileSize - 1) / tileSize));
+			resolving = false;
+		} else {
+			resolveArea(maincontext);
+		}
+		
+		Arrays.fill(surfaceShaders, 0, numsurfaces, null); // Let go of them
+		Arrays.fill(surfaceTextures, 0, numsurfaces, null);
+		numsurfaces = 0;
+	}
+	
+	private void resolveArea(RasterContext context) {
+		Span span = context.span;
+		span.ensureCapacity(context.maxx - context.minx);
+		for (int y = context.miny; y < context.maxy; y++) {
+			int rowindex = y * width;
+			int x = context.minx;
+			while (x < context.maxx) {
+				int pixelindex = rowindex + x;
+				int surface = surfaceBuffer[pixelindex];
+				if (surface == -1) {
+					x++;
+					continue;
+				}
+				
+				Shader shader = surfaceShaders[surface];
+				if (shader == null) {
+					surfaceBuffer[pixelindex] = -1;
+					pixels[pixelindex] = Blender.blend(surfaceBlendFunctions[surface], pixels[pixelindex], 
+							surfaceTextures[surface].mapARGB(uBuffer[pixelindex], vBuffer[pixelindex], lodBuffer[pixelindex])
+						);
+					x++;
+					continue;
+				}
+				
+				// Shade the run of pixels showing this surface in one go
+				int length = 0;
+				for (; x < context.maxx && surfaceBuffer[rowindex + x] == surface; x++) {
+					pixelindex = rowindex + x;
+					surfaceBuffer[pixelindex] = -1;
+					span.screenX[length] = x;
+					span.u[length] = uBuffer[pixelindex];
+					span.v[length] = vBuffer[pixelindex];
+					span.lod[length] = lodBuffer[pixelindex];
+					span.worldX[length] = worldxBuffer[pixelindex];
+					span.worldY[length] = worldyBuffer[pixelindex];
+					span.worldZ[length] = worldzBuffer[pixelindex];
+					span.destinationDepth[length] = destinationDepthBuffer[pixelindex];
+					span.sourceDepth[length] = depthBuffer[pixelindex];
+					span.destinationColor[length] = pixels[pixelindex];
+					length++;
+				}
+				span.screenY = y;
+				span.length = length;
+				
+				if (context != maincontext)
+					shader = context.getShader(shader);
+				int surfaceindex = surface * 3;
+				context.facenormal.set(surfaceNormals[surfaceindex], surfaceNormals[surfaceindex + 1], surfaceNormals[surfaceindex + 2]);
+				context.facecentre.set(surfaceCentres[surfaceindex], surfaceCentres[surfaceindex + 1], surfaceCentres[surfaceindex + 2]);
+				shader.texture = surfaceTextures[surface];
+				shader.faceNormal = context.facenormal;
+				shader.FaceCenter = context.facecentre;
+				shader.shadeSpan(span);
+				
+				for (int i = 0; i < length; i++) {
+					pixelindex = rowindex + span.screenX[i];
+					pixels[pixelindex] = span.sourceColor[i];
+					depthBuffer[pixelindex] = span.sourceDepth[i];
+				}
+				// The shader may have moved the depth, either way the hierarchy has to look again
+				if (hierarchicaldepth)
+					depthHierarchy.markDirty(y, span.screenX[0], span.screenX[length - 1] + 1);
+			}
 		}
 	}
 	
@@ -0,0 +1,131 @@
+package engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import engine.math.Frustum;
+import engine.math.Vector3;
+import engine.models.BoundsListener;
+import engine.models.Mesh;
+
+// Everything in a scene, with the meshes indexed by a bounding volume hierarchy so only the ones a camera can see are looked at.
+// The hierarchy is rebuilt after meshes are added or removed, and refitted around meshes that move
+public class Scene implements BoundsListener {
+	private ArrayList<Mesh> meshes = new ArrayList<Mesh>();
+	private IdentityHashMap<Mesh, Integer> meshindices = new IdentityHashMap<Mesh, Integer>();
+	private ArrayList<Vector3> lights = new ArrayList<Vector3>();
+	private ArrayList<Camera> cameras = new ArrayList<Camera>();
+	
+	private BoundingVolumeHierarchy hierarchy = new BoundingVolumeHierarchy();
+	private boolean rebuild = false; // Meshes were added or removed
+	private int[] moved = new int[0]; // Meshes to refit before the next traversal
+	private boolean[] hasmoved = new boolean[0];
+	private int nummoved = 0, numrefitted = 0;
+	private int[] visible = new int[0];
+	
+	public Scene() {}
+	
+	public void add(Mesh mesh) {
+		if (mesh.getBoundsListener() != null)
+			throw new IllegalArgumentException("Mesh is already in a scene.");
+		
+		mesh.setBoundsListener(this);
+		meshindices.put(mesh, meshes.size());
+		meshes.add(mesh);
+		rebuild = true;
+	}
+	public void remove(Mesh mesh) {
+		Integer index = meshindices.remove(mesh);
+		if (index == null)
+			return;
+		
+		mesh.setBoundsListener(null);
+		meshes.remove((int)index);
+		for (int i = index; i < meshes.size(); i++)
+			meshindices.put(meshes.get(i), i);
+		rebuild = true;
+	}
+	public List<Mesh> getMeshes() {
+		return Collections.unmodifiableList(meshes);
+	}
+	
+	public void addLight(Vector3 position) {
+		lights.add(position);
+	}
+	public void removeLight(Vector3 position) {
+		lights.remove(position);
+	}
+	public List<Vector3> getLights() {
+		return Collections.unmodifiableList(lights);
+	}
+	
+	public void addCamera(Camera camera) {
+		cameras.add(camera);
+	}
+	public void removeCamera(Camera camera) {
+		cameras.remove(camera);
+	}
+	public List<Camera> getCameras() {
+		return Collections.unmodifiableList(cameras);
+	}
+	
+	@Override
+	public void boundsChanged(Mesh mesh) {
+		if (rebuild)
+			return; // Will be picked up anyway
+		
+		int index = meshindices.get(mesh);
+		if (hasmoved[index])
+			return;
+		
+		hasmoved[index] = true;
+		moved[nummoved++] = index;
+	}
+	
+	// Fills the list with the meshes whose bounds touch the frustum, in the order they were added
+	void getVisibleMeshes(Frustum frustum, List<Mesh> out) {
+		update();
+		
+		int count = hierarchy.collect(frustum, visible);
+		Arrays.sort(visible, 0, count);
+		for (int i = 0; i < count; i++)
+			out.add(meshes.get(visible[i]));
+	}
+	
+	private void update() {
+		// Catch up on moves first, so the bounds the hierarchy is refitted around are current.
+		// Only the bounds, the vertcies of the meshes that turn out to be visible are moved when they're drawn
+		for (Mesh mesh : meshes)
+			mesh.updateBounds();
+		
+		// Refitting leaves the tree's shape as it was built, so start again once it's been stretched around as many moves as there are meshes
+		if (numrefitted + nummoved > meshes.size())
+			rebuild = true;
+		
+		if (rebuild) {
+			hierarchy.build(meshes);
+			int nummeshes = meshes.size();
+			if (moved.length < nummeshes) {
+				moved = new int[nummeshes];
+				hasmoved = new boolean[nummeshes];
+				visible = new int[nummeshes];
+			}
+			Arrays.fill(hasmoved, false);
+			nummoved = 0;
+			numrefitted = 0;
+			rebuild = false;
+			return;
+		}
+		
+		for (int i = 0; i < nummoved; i++) {
+			int index = moved[i];
+			hierarchy.refit(meshes.get(index), index);
+			hasmoved[index] = false;
+		}
+		numrefitted += nummoved;
+		nummoved = 0;
+	}
+}
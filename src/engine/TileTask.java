@@ -0,0 +1,41 @@
+package engine;
+
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Splits down to one task per worker context, then each worker pulls tiles until there are none left
+final class TileTask extends RecursiveAction {
+	private static final long serialVersionUID = -2203620185466417722L;
+	
+	private final Rasterizer rasterizer;
+	private final RasterContext[] contexts;
+	private final int firstcontext, lastcontext;
+	private final AtomicInteger nexttile;
+	private final int numtiles;
+	
+	public TileTask(Rasterizer rasterizer, RasterContext[] contexts, int firstcontext, int lastcontext, AtomicInteger nexttile, int numtiles) {
+		this.rasterizer = rasterizer;
+		this.contexts = contexts;
+		this.firstcontext = firstcontext;
+		this.lastcontext = lastcontext;
+		this.nexttile = nexttile;
+		this.numtiles = numtiles;
+	}
+
+	@Override
+	protected void compute() {
+		if (lastcontext - firstcontext > 1) {
+			int middle = (firstcontext + lastcontext) >>> 1;
+			invokeAll(
+					new TileTask(rasterizer, contexts, firstcontext, middle, nexttile, numtiles),
+					new TileTask(rasterizer, contexts, middle, lastcontext, nexttile, numtiles)
+				);
+			return;
+		}
+		
+		RasterContext context = contexts[firstcontext];
+		int tile;
+		while ((tile = nexttile.getAndIncrement()) < numtiles)
+			rasterizer.drawTile(tile, context);
+	}
+}
@@ -227,6 +227,59 @@ public final class Color {
 		a /= max;
 	}
 	
+	// Blending of packed ARGB values. Each channel saturates rather than overflowing into its neighbour
+	public final static int addARGB(int destination, int source) {
+		return pack(
+				Math.min(alpha(destination) + alpha(source), 255),
+				Math.min(red(destination) 	+ red(source), 	 255),
+				Math.min(green(destination) + green(source), 255),
+				Math.min(blue(destination) 	+ blue(source),  255)
+			);
+	}
+	public final static int subtractARGB(int destination, int source) {
+		return pack(
+				Math.max(alpha(destination) - alpha(source), 0),
+				Math.max(red(destination) 	- red(source), 	 0),
+				Math.max(green(destination) - green(source), 0),
+				Math.max(blue(destination) 	- blue(source),  0)
+			);
+	}
+	public final static int reverseSubtractARGB(int destination, int source) {
+		return subtractARGB(source, destination);
+	}
+	public final static int maxARGB(int destination, int source) {
+		return pack(
+				Math.max(alpha(destination), alpha(source)),
+				Math.max(red(destination), 	 red(source)),
+				Math.max(green(destination), green(source)),
+				Math.max(blue(destination),  blue(source))
+			);
+	}
+	public final static int minARGB(int destination, int source) {
+		return pack(
+				Math.min(alpha(destination), alpha(source)),
+				Math.min(red(destination), 	 red(source)),
+				Math.min(green(destination), green(source)),
+				Math.min(blue(destination),  blue(source))
+			);
+	}
+	
+	public final static int alpha(int argb) {
+		return (argb >>> 24) & 0xFF;
+	}
+	public final static int red(int argb) {
+		return (argb >> 16) & 0xFF;
+	}
+	public final static int green(int argb) {
+		return (argb >> 8) & 0xFF;
+	}
+	public final static int blue(int argb) {
+		return argb & 0xFF;
+	}
+	public final static int pack(int a, int r, int g, int b) {
+		return (a << 24) | (r << 16) | (g << 8) | b;
+	}
+	
 	public final static boolean hasAlpha(int argb) {
 		return ((argb >> 24) & 0xFF) < 255;
 	}
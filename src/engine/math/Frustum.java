@@ -0,0 +1,81 @@
+package engine.math;
+
+// The six planes around what a camera can see, in world space. Normals point inwards
+public final class Frustum {
+	private float[] planes = new float[6 * 4]; // a, b, c and d of each plane, where ax + by + cz + d is the distance inside
+	
+	public Frustum() {}
+	
+	// Pulls the planes out of a view * projection matrix. Each is a sum of two of its columns,
+	// as a point is inside when -w <= x <= w, -w <= y <= w and 0 <= z <= w after projection
+	public void set(Matrix viewprojection) {
+		set(viewprojection, 1);
+	}
+	// As above, but with the sides at -extent * w <= x, y <= extent * w, for when less than that reaches the screen
+	public void set(Matrix viewprojection, float extent) {
+		float scale = 1f / extent;
+		setPlane(0, viewprojection, 3, scale, 0); // Left
+		setPlane(1, viewprojection, 3, -scale, 0); // Right
+		setPlane(2, viewprojection, 3, scale, 1); // Bottom
+		setPlane(3, viewprojection, 3, -scale, 1); // Top
+		setPlane(4, viewprojection, 2, 0, 0); // Near
+		setPlane(5, viewprojection, 3, -1, 2); // Far
+	}
+	
+	public boolean intersectsSphere(Vector3 centre, float radius) {
+		for (int i = 0; i < planes.length; i += 4)
+			if (planes[i] * centre.x + planes[i+1] * centre.y + planes[i+2] * centre.z + planes[i+3] < -radius)
+				return false;
+		
+		return true;
+	}
+	
+	// Conservative, a box near a corner of the frustum can be let through
+	public boolean intersectsBox(Vector3 min, Vector3 max) {
+		for (int i = 0; i < planes.length; i += 4) {
+			// The corner furthest inside
+			float 
+			a = planes[i],
+			b = planes[i+1],
+			c = planes[i+2],
+			x = a > 0 ? max.x : min.x,
+			y = b > 0 ? max.y : min.y,
+			z = c > 0 ? max.z : min.z;
+			if (a * x + b * y + c * z + planes[i+3] < 0)
+				return false;
+		}
+		
+		return true;
+	}
+	
+	// Whether the whole box is inside
+	public boolean containsBox(Vector3 min, Vector3 max) {
+		for (int i = 0; i < planes.length; i += 4) {
+			// The corner furthest outside
+			float 
+			a = planes[i],
+			b = planes[i+1],
+			c = planes[i+2],
+			x = a > 0 ? min.x : max.x,
+			y = b > 0 ? min.y : max.y,
+			z = c > 0 ? min.z : max.z;
+			if (a * x + b * y + c * z + planes[i+3] < 0)
+				return false;
+		}
+		
+		return true;
+	}
+	
+	// column + sign * othercolumn, scaled so distances come out in world units
+	private void setPlane(int plane, Matrix matrix, int column, float sign, int othercolumn) {
+		int i = plane * 4;
+		for (int row = 0; row < 4; row++)
+			planes[i + row] = matrix.get(row * 4 + column) + sign * matrix.get(row * 4 + othercolumn);
+		
+		float length = (float)Math.sqrt(planes[i] * planes[i] + planes[i+1] * planes[i+1] + planes[i+2] * planes[i+2]);
+		if (length == 0)
+			return;
+		for (int row = 0; row < 4; row++)
+			planes[i + row] /= length;
+	}
+}
@@ -14,6 +14,19 @@ public class Matrix {
 		this.m = m;
 	}
 	
+	public float get(int index) {
+		return m[index];
+	}
+	
+	// Length of the longest of the x, y and z axes, how much a sphere could grow by being transformed
+	public float getMaxScale() {
+		float 
+		x = m[0] * m[0] + m[1] * m[1] + m[2] * m[2],
+		y = m[4] * m[4] + m[5] * m[5] + m[6] * m[6],
+		z = m[8] * m[8] + m[9] * m[9] + m[10] * m[10];
+		return (float)Math.sqrt(Math.max(x, Math.max(y, z)));
+	}
+	
 	private static float[] newMatrix() {
 		return new float[16];
 	}
@@ -315,12 +328,39 @@ public class Matrix {
         float w = (pos.x * mat.m[3]) + (pos.y * mat.m[7]) + (pos.z * mat.m[11]) + mat.m[15];
         return new Vector3(x / w, y / w, z / w);
 	}
-	public static void transformCoordinates(Vector3 pos, Matrix mat, Vector3 dest) {
+	// Returns the w the result was divided by
+	public static float transformCoordinates(Vector3 pos, Matrix mat, Vector3 dest) {
 		dest.x = (pos.x * mat.m[0]) + (pos.y * mat.m[4]) + (pos.z * mat.m[8]) + mat.m[12];
         dest.y = (pos.x * mat.m[1]) + (pos.y * mat.m[5]) + (pos.z * mat.m[9]) + mat.m[13];
         dest.z = (pos.x * mat.m[2]) + (pos.y * mat.m[6]) + (pos.z * mat.m[10]) + mat.m[14];
         float w = (pos.x * mat.m[3]) + (pos.y * mat.m[7]) + (pos.z * mat.m[11]) + mat.m[15];
         dest.divide(w);
+        return w;
+	}
+	
+	// Same again on flat x, y, z arrays. Returns the w the result was divided by
+	public static float transformCoordinates(float[] pos, int posoffset, Matrix mat, float[] dest, int destoffset) {
+		float 
+		x = pos[posoffset],
+		y = pos[posoffset+1],
+		z = pos[posoffset+2];
+		float w = (x * mat.m[3]) + (y * mat.m[7]) + (z * mat.m[11]) + mat.m[15];
+		dest[destoffset]   = ((x * mat.m[0]) + (y * mat.m[4]) + (z * mat.m[8]) + mat.m[12]) / w;
+		dest[destoffset+1] = ((x * mat.m[1]) + (y * mat.m[5]) + (z * mat.m[9]) + mat.m[13]) / w;
+		dest[destoffset+2] = ((x * mat.m[2]) + (y * mat.m[6]) + (z * mat.m[10]) + mat.m[14]) / w;
+		return w;
+	}
+	
+	// Leaves the result undivided, as x, y, z and w from offset
+	public static void transformHomogeneous(float[] pos, int posoffset, Matrix mat, float[] dest, int destoffset) {
+		float 
+		x = pos[posoffset],
+		y = pos[posoffset+1],
+		z = pos[posoffset+2];
+		dest[destoffset]   = (x * mat.m[0]) + (y * mat.m[4]) + (z * mat.m[8]) + mat.m[12];
+		dest[destoffset+1] = (x * mat.m[1]) + (y * mat.m[5]) + (z * mat.m[9]) + mat.m[13];
+		dest[destoffset+2] = (x * mat.m[2]) + (y * mat.m[6]) + (z * mat.m[10]) + mat.m[14];
+		dest[destoffset+3] = (x * mat.m[3]) + (y * mat.m[7]) + (z * mat.m[11]) + mat.m[15];
 	}
 	
 	public Vector3 transformNormal(Vector3 pos) {
@@ -0,0 +1,6 @@
+package engine.models;
+
+// Told whenever a mesh's world space bounds move
+public interface BoundsListener {
+	public void boundsChanged(Mesh mesh);
+}
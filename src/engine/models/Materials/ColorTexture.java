@@ -25,6 +25,11 @@ public final class ColorTexture extends Texture {
 		return color;
 	}
 
+	@Override
+	public final int mapARGB(float tu, float tv) {
+		return color.toARGB();
+	}
+
 	@Override
 	public final BufferedImage toBufferedImage() {
 		BufferedImage image = new BufferedImage(1,1,BufferedImage.TYPE_INT_ARGB);
@@ -6,28 +6,39 @@ import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 
 import javax.imageio.ImageIO;
 
 import engine.math.Color;
 import engine.models.Texture;
+import utils.ThreadPool;
 
 public final class ImageTexture extends Texture {
+	public static final int 
+	FILTER_NEAREST = 0, // The closest texel of the full size image
+	FILTER_BILINEAR = 1, // The closest four texels of the closest mipmap blended
+	FILTER_TRILINEAR = 2; // Bilinear from the two closest mipmaps blended
+	public static final int 
+	LAYOUT_LINEAR = 0, // A row at a time
+	LAYOUT_MORTON = 1; // Z-order, the bits of x and y interleaved so texels close in both directions are close in memory
+	private static final int PARALLEL_THRESHOLD = 65536; // Texels in a mipmap before it's worth splitting between threads
 
-	private Color[] pixels;
+	private Texels texels; // Shared with the textures made from this one, and this one with the one it was made from
+	private int filter = FILTER_NEAREST;
 	private int 
 	width,
-	widthpower, // the power of two of width
+	widthpower, // the power of two of width, if it is one
 	height;
+	private boolean poweroftwo; // Both dimensions are, so wrapping is a mask
 	public float repeatX = 1, repeatY = 1;
 	private int offsetX, offsetY;
 	
 	public ImageTexture(int width, int height) throws UnsupportedDimensionException {
 		setDimension(width, height);
 		
-		this.pixels = new Color[width * height];
-		for (int i=0; i<pixels.length; i++)
-			pixels[i] = new Color(0xFFFFFFFF);
+		texels = new Texels(new int[width * height]);
+		Arrays.fill(texels.pixels, 0xFFFFFFFF);
 	}
 	public ImageTexture(String path) throws IOException, UnsupportedDimensionException {
 		this(ImageIO.read(new File(path)));
@@ -36,33 +47,127 @@ public final class ImageTexture extends Texture {
 	public ImageTexture(BufferedImage tex) throws UnsupportedDimensionException {
 		setDimension(tex.getWidth(), tex.getHeight());
 		
-		this.pixels = new Color[width * height];
-		int i=0;
-		for (int y=0; y<height; y++) {
-			for (int x=0; x<width; x++) {
-				int argb = tex.getRGB(x, y);
-				this.pixels[i++] = new Color(argb);
-			}
-		}
+		texels = new Texels(tex.getRGB(0, 0, width, height, null, 0, width));
 	}
 	
 	public ImageTexture(int width, int height, Color[] buffer) throws UnsupportedDimensionException {
 		setDimension(width, height);
 		
-		pixels = new Color[pixels.length];
+		texels = new Texels(new int[width * height]);
 		copy(buffer);
 	}
 	
+	// Looks at the same texels and mipmaps as texture, so they're only in memory once, but is sampled its own way.
+	// Starts with texture's filter, repeats and offsets, which can then be changed without changing texture's.
+	// Copying into either changes both, and so does making mipmaps. Setting a different layout gives this one texels of its own
+	public ImageTexture(ImageTexture texture) {
+		texels = texture.texels;
+		width = texture.width;
+		widthpower = texture.widthpower;
+		height = texture.height;
+		poweroftwo = texture.poweroftwo;
+		filter = texture.filter;
+		repeatX = texture.repeatX;
+		repeatY = texture.repeatY;
+		offsetX = texture.offsetX;
+		offsetY = texture.offsetY;
+	}
+	
+	// Buffers are a row at a time whatever the layout
 	public void copy(Color[] buffer) {
+		int[] pixels = texels.pixels;
 		for (int i=0; i<Math.min(buffer.length, pixels.length); i++)
-			pixels[i].set(buffer[i]);
+			pixels[linearIndex(i)] = buffer[i].toARGB();
+		if (texels.levels != null)
+			generateMipmaps();
+	}
+	public void copy(int[] argbbuffer) {
+		int[] pixels = texels.pixels;
+		int length = Math.min(argbbuffer.length, pixels.length);
+		if (texels.layout == LAYOUT_LINEAR) {
+			System.arraycopy(argbbuffer, 0, pixels, 0, length);
+		} else {
+			for (int i=0; i<length; i++)
+				pixels[linearIndex(i)] = argbbuffer[i];
+		}
+		if (texels.levels != null)
+			generateMipmaps();
 	}
 	
+	// One of the LAYOUT_ constants. The texels and mipmaps are copied into it, so textures sharing them keep the layout they had.
+	// Morton suits textures drawn at an angle, where a row of pixels walks down or across the texture's rows. It needs power of two dimensions
+	public void setLayout(int layout) throws UnsupportedDimensionException {
+		if (layout == texels.layout)
+			return;
+		if (layout == LAYOUT_MORTON && !poweroftwo)
+			throw new UnsupportedDimensionException("Morton layout needs power of two dimensions.");
+		
+		// Going to Morton the texels are put where the new offsets say, going back to linear they're found where the old ones say
+		int[][] 
+		columnoffsets = layout == LAYOUT_MORTON ? buildMortonOffsets(0) : texels.columnoffsets,
+		rowoffsets = layout == LAYOUT_MORTON ? buildMortonOffsets(1) : texels.rowoffsets;
+		int[][] levels = new int[getNumMipmaps()][];
+		for (int level=0; level<levels.length; level++) {
+			int[] source = level == 0 ? texels.pixels : texels.levels[level];
+			int[] reordered = new int[source.length];
+			int levelwidth = getLevelWidth(level), levelheight = getLevelHeight(level);
+			for (int y=0; y<levelheight; y++)
+				for (int x=0; x<levelwidth; x++)
+					if (layout == LAYOUT_MORTON)
+						reordered[columnoffsets[level][x] + rowoffsets[level][y]] = source[y * levelwidth + x];
+					else
+						reordered[y * levelwidth + x] = source[columnoffsets[level][x] + rowoffsets[level][y]];
+			levels[level] = reordered;
+		}
+		
+		if (layout == LAYOUT_LINEAR)
+			columnoffsets = rowoffsets = null;
+		texels = new Texels(layout, levels[0], texels.levels == null ? null : levels, columnoffsets, rowoffsets);
+	}
+	public int getLayout() {
+		return texels.layout;
+	}
+	
+	// Makes each mipmap by averaging 2x2 blocks of the one above it, a third more memory again. Setting a filter that uses them
+	// makes them if there aren't any yet, so textures only ever drawn nearest don't pay for them. Copying into the texture remakes them
+	public void generateMipmaps() {
+		int numlevels = 32 - Integer.numberOfLeadingZeros(Math.max(width, height)); // Halving the longest side until it's 1
+		int[][] levels = new int[numlevels][];
+		levels[0] = texels.pixels;
+		for (int level=1; level<numlevels; level++) {
+			int levelheight = getLevelHeight(level);
+			levels[level] = new int[getLevelWidth(level) * levelheight];
+			if (levels[level].length < PARALLEL_THRESHOLD || ThreadPool.getThreadCount() == 1) {
+				downsample(levels, level, 0, levelheight);
+				continue;
+			}
+			
+			int chunksize = Math.max(levelheight / (ThreadPool.getThreadCount() * 4), 1);
+			ThreadPool.get().invoke(new MipmapTask(this, levels, level, 0, levelheight, chunksize));
+		}
+		texels.levels = levels; // Only once they're all made, so a texture sharing them never samples one half done
+	}
+	
+	public int getNumMipmaps() {
+		return texels.levels == null ? 1 : texels.levels.length;
+	}
+	
+	// One of the FILTER_ constants. Bilinear and trilinear make the mipmaps if there aren't any yet
+	public void setFilter(int filter) {
+		if (filter != FILTER_NEAREST && texels.levels == null)
+			generateMipmaps();
+		this.filter = filter;
+	}
+	public int getFilter() {
+		return filter;
+	}
+	
+	// Kept between 0 and the size so adding one to a wrapped coordinate can only go over once
 	public void setXOffset(int offset) {
-		offsetX = offset % width;
+		offsetX = ((offset % width) + width) % width;
 	}
 	public void setYOffset(int offset) {
-		offsetY = offset % height;
+		offsetY = ((offset % height) + height) % height;
 	}
 	
 	public int getWidth() {
@@ -74,39 +179,266 @@ public final class ImageTexture extends Texture {
 	}
 	
 	public int numberOfPixels() {
-		return pixels.length;
+		return texels.pixels.length;
+	}
+	
+	// Memory taken by the texels and mipmaps, which textures sharing them take together
+	public long getSizeInBytes() {
+		int[][] levels = texels.levels;
+		if (levels == null)
+			return texels.pixels.length * 4L;
+		
+		long size = 0;
+		for (int[] level : levels)
+			size += level.length * 4L;
+		return size;
 	}
 	
+	// Kept for anything still wanting a Color, the texel is copied into a new one
 	public final Color map(float u, float v) {
+		return new Color(mapARGB(u, v));
+	}
+	
+	@Override
+	public final int mapARGB(float u, float v) {
+		if (!poweroftwo)
+			return mapNonPowerOfTwo(u, v);
+		
 		u = Math.abs(u);
 		v = Math.abs(v);
 		int x = (int)(u * width * repeatX) + offsetX;
 		int y = (int)(v * height * repeatY) + offsetY;
 		x &= width-1;
 		y &= height-1;
-		Color pixel = pixels[(y << widthpower) + x]; // Multiplying by a power of two is the same as bit shifting, bit shift is faster 
-		return pixel;
+		Texels texels = this.texels;
+		if (texels.columnoffsets != null)
+			return texels.pixels[texels.columnoffsets[0][x] + texels.rowoffsets[0][y]];
+		return texels.pixels[(y << widthpower) + x]; // Multiplying by a power of two is the same as bit shifting, bit shift is faster 
+	}
+	
+	// Can't wrap with a mask, and % is a division. The whole repeats are dropped from u and v instead,
+	// leaving the offset as the only thing that can take a coordinate past the edge
+	private int mapNonPowerOfTwo(float u, float v) {
+		int x = wrap((int)(repeatFraction(Math.abs(u) * repeatX) * width) + offsetX, width);
+		int y = wrap((int)(repeatFraction(Math.abs(v) * repeatY) * height) + offsetY, height);
+		return texels.pixels[y * width + x];
+	}
+	
+	// How far into a repeat a coordinate is, from 0 up to 1. Dropping the whole repeats with (int) saturates past the range of an int,
+	// so those coordinates, infinite ones and ones that aren't a number all come out as 0 instead of indexing past the edge.
+	// Power of two sizes don't need this, their mask keeps any int in range
+	private static float repeatFraction(float t) {
+		float fraction = t - (float)Math.floor(t);
+		return fraction >= 0 && fraction < 1 ? fraction : 0;
+	}
+	
+	@Override
+	public int mapARGB(float u, float v, float lod) {
+		int maxlevel = getNumMipmaps() - 1;
+		if (lod < 0) 
+			lod = 0;
+		else if (lod > maxlevel) 
+			lod = maxlevel;
+		
+		switch (filter) {
+			case FILTER_TRILINEAR:
+				int level = (int)lod;
+				int blend = (int)((lod - level) * 256);
+				int texel = sampleBilinear(level, u, v);
+				if (blend == 0)
+					return texel;
+				return lerp(texel, sampleBilinear(level + 1, u, v), blend);
+			case FILTER_BILINEAR:
+				return sampleBilinear((int)(lod + 0.5f), u, v);
+			default:
+				return mapARGB(u, v);
+		}
+	}
+	
+	// Texels covered per pixel along whichever screen axis covers more, as a power of two
+	@Override
+	public float getLevelOfDetail(float dudx, float dvdx, float dudy, float dvdy) {
+		float 
+		scaleu = width * repeatX,
+		scalev = height * repeatY,
+		xu = dudx * scaleu, xv = dvdx * scalev,
+		yu = dudy * scaleu, yv = dvdy * scalev;
+		return fastLog2(Math.max(xu * xu + xv * xv, yu * yu + yv * yv)) * 0.5f; // Half the log of the square is the log of the length
+	}
+	
+	@Override
+	public boolean isFiltered() {
+		return filter != FILTER_NEAREST;
+	}
+	
+	// The four texels around a point of a mipmap blended by how close each is
+	private int sampleBilinear(int level, float u, float v) {
+		Texels texels = this.texels;
+		int[] source = texels.levels == null ? texels.pixels : texels.levels[level];
+		int 
+		levelwidth = getLevelWidth(level),
+		levelheight = getLevelHeight(level),
+		levelwidthpower = Math.max(widthpower - level, 0);
+		
+		// Texel centres are at the halves
+		float x, y;
+		if (poweroftwo) {
+			x = Math.abs(u) * levelwidth * repeatX - 0.5f;
+			y = Math.abs(v) * levelheight * repeatY - 0.5f;
+		} else {
+			// Whole repeats dropped, as in mapNonPowerOfTwo
+			x = repeatFraction(Math.abs(u) * repeatX) * levelwidth - 0.5f;
+			y = repeatFraction(Math.abs(v) * repeatY) * levelheight - 0.5f;
+		}
+		int 
+		x0 = (int)(x + 1) - 1, // Never below -0.5 so this floors
+		y0 = (int)(y + 1) - 1,
+		blendx = (int)((x - x0) * 256),
+		blendy = (int)((y - y0) * 256);
+		x0 += offsetX >> level;
+		y0 += offsetY >> level;
+		int x1, y1;
+		if (poweroftwo) {
+			x1 = (x0 + 1) & (levelwidth - 1);
+			y1 = (y0 + 1) & (levelheight - 1);
+			x0 &= levelwidth - 1;
+			y0 &= levelheight - 1;
+		} else {
+			x0 = wrap(x0, levelwidth);
+			y0 = wrap(y0, levelheight);
+			x1 = x0 + 1 == levelwidth ? 0 : x0 + 1;
+			y1 = y0 + 1 == levelheight ? 0 : y0 + 1;
+		}
+		if (texels.columnoffsets != null) {
+			int[] columns = texels.columnoffsets[level], rows = texels.rowoffsets[level];
+			x0 = columns[x0];
+			x1 = columns[x1];
+			y0 = rows[y0];
+			y1 = rows[y1];
+		} else if (poweroftwo) {
+			y0 <<= levelwidthpower;
+			y1 <<= levelwidthpower;
+		} else {
+			y0 *= levelwidth;
+			y1 *= levelwidth;
+		}
+		
+		return lerp(
+				lerp(source[y0 + x0], source[y0 + x1], blendx),
+				lerp(source[y1 + x0], source[y1 + x1], blendx),
+				blendy
+			);
+	}
+	
+	// Brings a coordinate no more than one length outside back inside
+	private static int wrap(int i, int length) {
+		if (i < 0)
+			return i + length;
+		if (i >= length)
+			return i - length;
+		return i;
+	}
+	
+	// Blends two packed colours, amount out of 256. Red and blue, then alpha and green, are done together as they're 16 bits apart
+	private static int lerp(int a, int b, int amount) {
+		int keep = 256 - amount;
+		int redblue = (((a & 0xFF00FF) * keep + (b & 0xFF00FF) * amount) >>> 8) & 0xFF00FF;
+		int alphagreen = ((a >>> 8 & 0xFF00FF) * keep + (b >>> 8 & 0xFF00FF) * amount) & 0xFF00FF00;
+		return alphagreen | redblue;
+	}
+	
+	// Fills rows first to last of a mipmap with the average of each 2x2 block of the one above. Last is exclusive
+	void downsample(int[][] levels, int level, int first, int last) {
+		int[] source = levels[level - 1], destination = levels[level];
+		int 
+		sourcewidth = getLevelWidth(level - 1),
+		sourceheight = getLevelHeight(level - 1),
+		levelwidth = getLevelWidth(level),
+		stepx = sourcewidth > 1 ? 1 : 0, // A side already 1 texel long stays that way, the texel is used twice
+		stepy = sourceheight > 1 ? 1 : 0;
+		for (int y=first; y<last; y++) {
+			int sourcey = y * 2 * stepy;
+			for (int x=0; x<levelwidth; x++) {
+				int sourcex = x * 2 * stepx;
+				destination[index(level, x, y)] = average(
+						source[index(level - 1, sourcex, sourcey)], 
+						source[index(level - 1, sourcex + stepx, sourcey)], 
+						source[index(level - 1, sourcex, sourcey + stepy)], 
+						source[index(level - 1, sourcex + stepx, sourcey + stepy)]
+					);
+			}
+		}
+	}
+	
+	// Where the i'th texel of a row at a time buffer is in pixels
+	private int linearIndex(int i) {
+		if (texels.layout == LAYOUT_LINEAR)
+			return i;
+		return index(0, i & (width-1), i >> widthpower);
+	}
+	
+	// Where a texel of a mipmap is in its array
+	private int index(int level, int x, int y) {
+		Texels texels = this.texels;
+		if (texels.columnoffsets != null)
+			return texels.columnoffsets[level][x] + texels.rowoffsets[level][y];
+		return y * getLevelWidth(level) + x;
+	}
+	
+	// The Morton offsets of every column (shift 0) or row (shift 1) of every mipmap, whether or not there are mipmaps yet.
+	// The bits of x go to the even bits and y the odd, until the shorter side runs out and the longer side's carry on in order above them
+	private int[][] buildMortonOffsets(int shift) {
+		int numlevels = Math.max(widthpower, powerOfTwo(height)) + 1;
+		int[][] offsets = new int[numlevels][];
+		for (int level=0; level<numlevels; level++) {
+			int levelwidth = getLevelWidth(level), levelheight = getLevelHeight(level);
+			int sharedbits = Math.min(powerOfTwo(levelwidth), powerOfTwo(levelheight));
+			offsets[level] = spreadBits(shift == 0 ? levelwidth : levelheight, sharedbits, shift);
+		}
+		return offsets;
+	}
+	private static int[] spreadBits(int length, int sharedbits, int shift) {
+		int[] offsets = new int[length];
+		for (int i=0; i<length; i++) {
+			int offset = (i >> sharedbits) << (sharedbits * 2);
+			for (int bit=0; bit<sharedbits; bit++)
+				offset |= ((i >> bit) & 1) << (bit * 2 + shift);
+			offsets[i] = offset;
+		}
+		return offsets;
+	}
+	
+	private static int average(int a, int b, int c, int d) {
+		int redblue = (a & 0xFF00FF) + (b & 0xFF00FF) + (c & 0xFF00FF) + (d & 0xFF00FF) + 0x20002; // Adding 2 rounds to nearest
+		int alphagreen = (a >>> 8 & 0xFF00FF) + (b >>> 8 & 0xFF00FF) + (c >>> 8 & 0xFF00FF) + (d >>> 8 & 0xFF00FF) + 0x20002;
+		return ((alphagreen << 6) & 0xFF00FF00) | ((redblue >>> 2) & 0xFF00FF);
+	}
+	
+	private int getLevelWidth(int level) {
+		return Math.max(width >> level, 1);
+	}
+	private int getLevelHeight(int level) {
+		return Math.max(height >> level, 1);
 	}
 
 	@Override
 	public BufferedImage toBufferedImage() {
 		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-		for (int y=0; y<height; y++) {
-			for (int x=0; x<width; x++) {
-				image.setRGB(x, y, pixels[y*width + x].toARGB());
-			}
-		}
+		image.setRGB(0, 0, width, height, texels.layout == LAYOUT_LINEAR ? texels.pixels : toARGBArray(), 0, width);
 		
 		return image;
 	}
 	
+	// A row at a time whatever the layout
 	public int[] toARGBArray() {
-		int[] argblist = new int[pixels.length];
-		int i=0;
-		for (Color c : pixels)
-			argblist[i++] = c.toARGB();
+		int[] pixels = texels.pixels;
+		if (texels.layout == LAYOUT_LINEAR)
+			return pixels.clone();
 		
-		return argblist;
+		int[] argb = new int[pixels.length];
+		for (int i=0; i<argb.length; i++)
+			argb[i] = pixels[linearIndex(i)];
+		return argb;
 	}
 	
 	public DataBufferInt toDataBuffer() {
@@ -115,12 +447,13 @@ public final class ImageTexture extends Texture {
 	}
 	
 	private void setDimension(int width, int height) throws UnsupportedDimensionException {
-		if (!isPowerOfTwo(width) || !isPowerOfTwo(height))
-			throw new UnsupportedDimensionException("Image dimension must be a power of two.");
+		if (width < 1 || height < 1)
+			throw new UnsupportedDimensionException("Image dimension must be at least one pixel.");
 		
 		this.width = width;
 		this.height = height;
-		this.widthpower = powerOfTwo(width);
+		this.poweroftwo = isPowerOfTwo(width) && isPowerOfTwo(height);
+		this.widthpower = poweroftwo ? powerOfTwo(width) : 0;
 	}
 	
 }
@@ -0,0 +1,37 @@
+package engine.models.Materials;
+
+import java.util.concurrent.RecursiveAction;
+
+// Splits making one mipmap into chunks of rows. Each row only reads the mipmap above, so the result is the same as doing it in one go
+final class MipmapTask extends RecursiveAction {
+	private static final long serialVersionUID = -2715830402367921862L;
+	
+	private final ImageTexture texture;
+	private final int[][] levels; // Being made, not yet the texture's
+	private final int level;
+	private final int first, last; // Last is exclusive
+	private final int chunksize;
+	
+	public MipmapTask(ImageTexture texture, int[][] levels, int level, int first, int last, int chunksize) {
+		this.texture = texture;
+		this.levels = levels;
+		this.level = level;
+		this.first = first;
+		this.last = last;
+		this.chunksize = chunksize;
+	}
+
+	@Override
+	protected void compute() {
+		if (last - first > chunksize) {
+			int middle = (first + last) >>> 1;
+			invokeAll(
+					new MipmapTask(texture, levels, level, first, middle, chunksize),
+					new MipmapTask(texture, levels, level, middle, last, chunksize)
+				);
+			return;
+		}
+		
+		texture.downsample(levels, level, first, last);
+	}
+}
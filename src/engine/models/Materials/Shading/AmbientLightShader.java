@@ -8,6 +8,7 @@ public final class AmbientLightShader extends Shader {
 	public float dropoffDistance;
 	
 	private Vector3 direction = new Vector3();
+	private static final int BLACK = new Color(Color.black).toARGB();
 	
 	public AmbientLightShader(Vector3 lightpos, float dropoffdistance) {
 		this.lightpos = lightpos;
@@ -34,4 +35,35 @@ public final class AmbientLightShader extends Shader {
 		getTextureColor();
 		sourceColor.multiply(1, c, c, c);
 	}
+	
+	@Override
+	public void shadeSpan(Span span) {
+		for (int i = 0; i < span.length; i++) {
+			direction.set(lightpos.x - span.worldX[i], lightpos.y - span.worldY[i], lightpos.z - span.worldZ[i]);
+			float dist = (float)direction.getMagnitude();
+			if (dist > dropoffDistance) {
+				span.sourceColor[i] = BLACK;
+				continue;
+			}
+			float dot = faceNormal.dotProduct(direction.normalize());
+			if (dot < 0) {
+				span.sourceColor[i] = BLACK;
+				continue;
+			}
+			
+			float c = 1 - (dist / dropoffDistance);
+			c *= dot;
+			
+			sourceColor.set(texture.mapARGB(span.u[i], span.v[i], span.lod[i]));
+			sourceColor.multiply(1, c, c, c);
+			span.sourceColor[i] = sourceColor.toARGB();
+		}
+	}
+	
+	@Override
+	public Shader Clone() {
+		AmbientLightShader shader = (AmbientLightShader)super.Clone();
+		shader.direction = new Vector3();
+		return shader;
+	}
 }
@@ -1,5 +1,7 @@
 package engine.models.Materials.Shading;
 
+import java.util.Arrays;
+
 public final class NormalShader extends Shader {
 
 	@Override
@@ -8,4 +10,10 @@ public final class NormalShader extends Shader {
 		sourceColor.g = 0.5f + (faceNormal.y / 2);
 		sourceColor.b = 0.5f + (faceNormal.z / 2);
 	}
+	
+	@Override
+	public void shadeSpan(Span span) {
+		shade(); // Same for the whole face
+		Arrays.fill(span.sourceColor, 0, span.length, sourceColor.toARGB());
+	}
 }
@@ -1,10 +1,44 @@
 package engine.models.Materials.Shading;
 
 import engine.Fragment;
+import engine.math.Color;
 
-public class Shader extends Fragment {
+public class Shader extends Fragment implements Cloneable {
 	
 	public void shade() {
 		destinationColor.set(sourceColor);
 	}
+	
+	// Shades a whole span at a time. Override to do it without going through the fields and shade() for every pixel,
+	// and again in subclasses of a shader that does if they change what shade() does
+	public void shadeSpan(Span span) {
+		screenY = span.screenY;
+		worldPosition = span.worldPosition;
+		for (int i = 0; i < span.length; i++) {
+			worldPosition.set(span.worldX[i], span.worldY[i], span.worldZ[i]);
+			destinationDepth = span.destinationDepth[i];
+			sourceDepth = span.sourceDepth[i];
+			screenX = span.screenX[i];
+			u = span.u[i];
+			v = span.v[i];
+			lod = span.lod[i];
+			destinationColor.set(span.destinationColor[i]);
+			shade();
+			
+			span.sourceColor[i] = sourceColor.toARGB();
+			span.sourceDepth[i] = sourceDepth;
+		}
+	}
+	
+	// Each rasterizing thread shades with its own copy. Override if a shader keeps scratch objects
+	public Shader Clone() {
+		try {
+			Shader shader = (Shader)super.clone();
+			shader.sourceColor = new Color();
+			shader.destinationColor = new Color();
+			return shader;
+		} catch (CloneNotSupportedException e) {
+			throw new InternalError(e.getMessage());
+		}
+	}
 }
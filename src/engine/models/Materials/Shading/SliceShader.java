@@ -22,4 +22,18 @@ public class SliceShader extends Shader {
 			sourceColor.set(destinationColor);
 		}
 	}
+	
+	@Override
+	public void shadeSpan(Span span) {
+		for (int i = 0; i < span.length; i++) {
+			float y = (span.worldY[i] + offset) % height;
+			if (Math.abs(y) < height / 2) {
+				sourceColor.set(texture.mapARGB(span.u[i], span.v[i], span.lod[i]));
+				span.sourceColor[i] = sourceColor.toARGB();
+			} else {
+				span.sourceDepth[i] = span.destinationDepth[i];
+				span.sourceColor[i] = span.destinationColor[i];
+			}
+		}
+	}
 }
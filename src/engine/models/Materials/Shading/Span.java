@@ -0,0 +1,41 @@
+package engine.models.Materials.Shading;
+
+import java.util.Arrays;
+
+import engine.math.Vector3;
+
+// A run of pixels on one row to be shaded in one go. Index i of every array describes the same pixel.
+// Shaders read the inputs and write sourceColor, and sourceDepth if they change it
+public final class Span {
+	public int screenY, length;
+	public int[] 
+	screenX = new int[0],
+	destinationColor = new int[0], // Packed ARGB
+	sourceColor = new int[0];
+	public float[] 
+	u = new float[0], v = new float[0],
+	lod = new float[0], // Texture level of detail, 0 if the texture isn't filtered
+	worldX = new float[0], worldY = new float[0], worldZ = new float[0],
+	destinationDepth = new float[0],
+	sourceDepth = new float[0];
+	public Vector3 worldPosition = new Vector3(); // Scratch for shaders that go through shade() one pixel at a time
+	
+	public Span() {}
+	
+	public void ensureCapacity(int capacity) {
+		if (capacity <= screenX.length)
+			return;
+		
+		screenX = Arrays.copyOf(screenX, capacity);
+		destinationColor = Arrays.copyOf(destinationColor, capacity);
+		sourceColor = Arrays.copyOf(sourceColor, capacity);
+		u = Arrays.copyOf(u, capacity);
+		v = Arrays.copyOf(v, capacity);
+		lod = Arrays.copyOf(lod, capacity);
+		worldX = Arrays.copyOf(worldX, capacity);
+		worldY = Arrays.copyOf(worldY, capacity);
+		worldZ = Arrays.copyOf(worldZ, capacity);
+		destinationDepth = Arrays.copyOf(destinationDepth, capacity);
+		sourceDepth = Arrays.copyOf(sourceDepth, capacity);
+	}
+}
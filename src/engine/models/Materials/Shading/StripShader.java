@@ -25,4 +25,17 @@ public class StripShader extends Shader {
 			sourceColor.set(color2);
 		}
 	}
+	
+	@Override
+	public void shadeSpan(Span span) {
+		sourceColor.set(color1);
+		int argb1 = sourceColor.toARGB();
+		sourceColor.set(color2);
+		int argb2 = sourceColor.toARGB();
+		
+		for (int i = 0; i < span.length; i++) {
+			float y = (span.worldY[i] + offset) % height;
+			span.sourceColor[i] = Math.abs(y) < height / 2 ? argb1 : argb2;
+		}
+	}
 }
@@ -18,4 +18,14 @@ public final class WorldSpaceShader extends Shader {
 		sourceColor.g = CommonMath.map(Math.abs(worldPosition.y), -height, height, 0, 1);
 		sourceColor.b = CommonMath.map(Math.abs(worldPosition.z), -depth, depth, 0, 1);
 	}
+	
+	@Override
+	public void shadeSpan(Span span) {
+		for (int i = 0; i < span.length; i++) {
+			sourceColor.r = CommonMath.map(Math.abs(span.worldX[i]), -width, width, 0, 1);
+			sourceColor.g = CommonMath.map(Math.abs(span.worldY[i]), -height, height, 0, 1);
+			sourceColor.b = CommonMath.map(Math.abs(span.worldZ[i]), -depth, depth, 0, 1);
+			span.sourceColor[i] = sourceColor.toARGB();
+		}
+	}
 }
@@ -0,0 +1,22 @@
+package engine.models.Materials;
+
+// The texels of an image and its mipmaps, in one layout. Textures made from another ImageTexture look at the same ones,
+// so an image loaded once is only in memory once however its users sample it
+final class Texels {
+	final int layout; // One of ImageTexture's LAYOUT_ constants
+	final int[] pixels; // Packed ARGB, laid out as layout says
+	int[][] levels; // Mipmaps, each half the size of the last down to 1x1. levels[0] is pixels. Null if there aren't any
+	// Per mipmap, a column's and a row's offset added together is where a texel is in the Morton layout. Null when linear
+	final int[][] columnoffsets, rowoffsets;
+	
+	Texels(int[] pixels) {
+		this(ImageTexture.LAYOUT_LINEAR, pixels, null, null, null);
+	}
+	Texels(int layout, int[] pixels, int[][] levels, int[][] columnoffsets, int[][] rowoffsets) {
+		this.layout = layout;
+		this.pixels = pixels;
+		this.levels = levels;
+		this.columnoffsets = columnoffsets;
+		this.rowoffsets = rowoffsets;
+	}
+}
@@ -3,6 +3,8 @@ package engine.models;
 import java.awt.image.BufferedImage;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 import javax.imageio.ImageIO;
 
@@ -10,99 +12,569 @@ import engine.math.Matrix;
 import engine.math.Vector3;
 import engine.models.Materials.ImageTexture;
 import engine.models.Materials.Shading.Shader;
+import utils.ThreadPool;
 
 public class Mesh {
-	private Vertex[] 
-			vertcies;
-	public Vector3[]
-			transformedvertcies,
-			projectedvertcies; 
-	public Face[] faces;
-	private Vector3 
-		position = Vector3.zero.Clone(),
-		rotation = new Vector3(0.00001f, 0.00001f, 0.00001f);
+	// Vertcies, three floats each
+	public float[] 
+			positions, // In model space
+			worldpositions, // As of the last update
+			projectedpositions; // On screen, with projected depth as z
+	public float[] projectedinversew; // 1/w of each projected vertex, for perspective correct interpolation
+	public float[] homogeneousvertcies; // x, y, z and w of each projected vertex before the divide, for clipping
+	// Faces
+	public int[] indices; // Three vertcies each
+	public float[] 
+			uvs, // u and v of each corner, six floats each
+			normals, // In world space, three floats each
+			centres;
+	// Faces are split into small clusters of neighbours when the mesh is made, so whole clusters can be culled at once
+	public static final int CLUSTER_SIZE = 64; // Most faces in a cluster
+	public int[] faceclusters; // Cluster of each face
+	public float[] 
+			clusterspheres, // x, y, z and radius in world space, around the cluster's vertcies and face centres
+			clustercones; // x, y, z of the cluster's average face normal and the largest angle between it and any face normal, PI if there's no telling
+	private int[] 
+			clusterfaces, // Faces of each cluster, one cluster after another
+			clusteroffsets; // Where each cluster's faces start in clusterfaces, with the total on the end
+	private int numvertcies, numfaces, numclusters;
+	private static int parallelThreshold = 65536;
+	private Transform transform = new Transform();
+	private int transformedversion; // Version of the transform's world matrix the world bounds were made with
+	private boolean stale; // World positions, faces and clusters are behind the world matrix
 	public Texture texture = Texture.error;
 	
-	public Matrix worldmatrix;
+	public Matrix worldmatrix; // As of the last update
 	
 	public Shader shader;
 	
+	// Bounding volumes in model space, and in world space as of the last updateBounds
+	public final Vector3 
+	boundsmin = new Vector3(),
+	boundsmax = new Vector3(),
+	boundscentre = new Vector3(),
+	worldboundsmin = new Vector3(),
+	worldboundsmax = new Vector3(),
+	worldboundscentre = new Vector3();
+	public float 
+	boundsradius,
+	worldboundsradius;
+	private BoundsListener boundsListener;
+	
+	// Simpler versions of this mesh for drawing from further away, and the largest distance each one's surface was moved by simplifying
+	private Mesh[] levels = new Mesh[0];
+	private float[] levelerrors = new float[0];
+	
+	// Positions are x, y, z of each vertex, uvs are u, v of each corner of each face and indices are three vertcies per face
+	public Mesh(float[] positions, float[] uvs, int[] indices, Texture tex) {
+		this.positions = positions;
+		this.uvs = uvs;
+		this.indices = indices;
+		this.texture = tex;
+		numvertcies = positions.length / 3;
+		numfaces = indices.length / 3;
+		
+		worldpositions = positions.clone();
+		normals = new float[numfaces * 3];
+		centres = new float[numfaces * 3];
+		updateFaces();
+		
+		initialise();
+	}
+	
+	// Face normals and centres as they were in another mesh
+	Mesh(float[] positions, float[] uvs, int[] indices, float[] normals, float[] centres, Texture tex) {
+		this.positions = positions;
+		this.uvs = uvs;
+		this.indices = indices;
+		this.normals = normals;
+		this.centres = centres;
+		this.texture = tex;
+		numvertcies = positions.length / 3;
+		numfaces = indices.length / 3;
+		
+		worldpositions = positions.clone();
+		initialise();
+	}
+	
+	// Shares another mesh's vertcies, faces, texture and shader but has its own transformed copies, to draw it somewhere else.
+	// Starts off untransformed, with the face normals, centres and clusters in model space
+	public Mesh(Mesh geometry) {
+		positions = geometry.positions;
+		uvs = geometry.uvs;
+		indices = geometry.indices;
+		numvertcies = geometry.numvertcies;
+		numfaces = geometry.numfaces;
+		texture = geometry.texture;
+		shader = geometry.shader;
+		faceclusters = geometry.faceclusters;
+		clusterfaces = geometry.clusterfaces;
+		clusteroffsets = geometry.clusteroffsets;
+		numclusters = geometry.numclusters;
+		
+		worldpositions = positions.clone();
+		normals = new float[numfaces * 3];
+		centres = new float[numfaces * 3];
+		updateFaces();
+		initialise();
+	}
+	
+	// Copies vertcies and faces made one object at a time into flat arrays. Face normals and centres are kept as they are
 	public Mesh(Vertex[] verticies, Face[] faces, Texture tex) {
-		this.vertcies = verticies;
-		
-		transformedvertcies = new Vector3[vertcies.length];
-		projectedvertcies = new Vector3[vertcies.length];
-		for (int i=0; i<vertcies.length; i++) {
-			Vertex vertex = vertcies[i];
-			transformedvertcies[i] 	= vertex.position.Clone();
-			projectedvertcies[i] 	= vertex.position.Clone();
+		numvertcies = verticies.length;
+		numfaces = faces.length;
+		positions = new float[numvertcies * 3];
+		for (int i=0; i<numvertcies; i++) {
+			Vector3 position = verticies[i].position;
+			positions[i*3] 	   = position.x;
+			positions[i*3 + 1] = position.y;
+			positions[i*3 + 2] = position.z;
 		}
-			
-		this.faces = faces;
+		
+		indices = new int[numfaces * 3];
+		uvs = new float[numfaces * 6];
+		normals = new float[numfaces * 3];
+		centres = new float[numfaces * 3];
+		for (int i=0; i<numfaces; i++) {
+			Face face = faces[i];
+			indices[i*3] 	 = face.vertex1;
+			indices[i*3 + 1] = face.vertex2;
+			indices[i*3 + 2] = face.vertex3;
+			uvs[i*6] 	 = face.uv1.u;
+			uvs[i*6 + 1] = face.uv1.v;
+			uvs[i*6 + 2] = face.uv2.u;
+			uvs[i*6 + 3] = face.uv2.v;
+			uvs[i*6 + 4] = face.uv3.u;
+			uvs[i*6 + 5] = face.uv3.v;
+			normals[i*3] 	 = face.normal.x;
+			normals[i*3 + 1] = face.normal.y;
+			normals[i*3 + 2] = face.normal.z;
+			centres[i*3] 	 = face.center.x;
+			centres[i*3 + 1] = face.center.y;
+			centres[i*3 + 2] = face.center.z;
+		}
+		
+		worldpositions = positions.clone();
 		this.texture = tex;
-
-		updateWorldMatrix();
+		initialise();
 	}
 	
-	public void projectVertcies(Matrix projectionmatrix) {
-		for (int i=0; i<vertcies.length; i++) {
-			Matrix.transformCoordinates(vertcies[i].position, projectionmatrix, projectedvertcies[i]);
+	private void initialise() {
+		projectedpositions = new float[numvertcies * 3];
+		projectedinversew = new float[numvertcies];
+		homogeneousvertcies = new float[numvertcies * 4];
+		
+		if (faceclusters == null)
+			buildClusters();
+		clusterspheres = new float[numclusters * 4];
+		clustercones = new float[numclusters * 4];
+		updateClusters();
+		
+		// Vertcies start off untransformed
+		transform.setRotation(0.00001f, 0.00001f, 0.00001f);
+		worldmatrix = transform.getWorldMatrix();
+		transformedversion = transform.getVersion();
+		calculateBounds();
+	}
+	
+	public int getNumVertcies() {
+		return numvertcies;
+	}
+	public int getNumFaces() {
+		return numfaces;
+	}
+	public int getNumClusters() {
+		return numclusters;
+	}
+	
+	// Grows each cluster outwards from its first face through faces sharing a vertex, so they're close together and mostly face the same way
+	private void buildClusters() {
+		// Faces using each vertex
+		int[] vertexoffsets = new int[numvertcies + 1];
+		for (int i=0; i<numfaces * 3; i++)
+			vertexoffsets[indices[i] + 1]++;
+		for (int i=0; i<numvertcies; i++)
+			vertexoffsets[i + 1] += vertexoffsets[i];
+		int[] vertexfaces = new int[numfaces * 3];
+		int[] filled = new int[numvertcies];
+		for (int i=0; i<numfaces * 3; i++) {
+			int vertex = indices[i];
+			vertexfaces[vertexoffsets[vertex] + filled[vertex]++] = i / 3;
 		}
+		
+		faceclusters = new int[numfaces];
+		Arrays.fill(faceclusters, -1);
+		clusterfaces = new int[numfaces];
+		clusteroffsets = new int[numfaces / CLUSTER_SIZE + 2];
+		int[] queue = new int[numfaces];
+		int[] queued = new int[numfaces]; // Which cluster last queued each face, plus one
+		int numadded = 0;
+		numclusters = 0;
+		for (int seed=0; seed<numfaces; seed++) {
+			if (faceclusters[seed] != -1)
+				continue;
+			
+			if (numclusters + 1 == clusteroffsets.length)
+				clusteroffsets = Arrays.copyOf(clusteroffsets, clusteroffsets.length * 2);
+			int cluster = numclusters++;
+			clusteroffsets[cluster] = numadded;
+			int head = 0, tail = 0, size = 0;
+			queue[tail++] = seed;
+			queued[seed] = cluster + 1;
+			while (head < tail && size < CLUSTER_SIZE) {
+				int face = queue[head++];
+				faceclusters[face] = cluster;
+				clusterfaces[numadded++] = face;
+				size++;
+				
+				for (int corner=0; corner<3; corner++) {
+					int vertex = indices[face*3 + corner];
+					for (int i=vertexoffsets[vertex]; i<vertexoffsets[vertex + 1]; i++) {
+						int other = vertexfaces[i];
+						if (faceclusters[other] == -1 && queued[other] != cluster + 1) {
+							queued[other] = cluster + 1;
+							queue[tail++] = other;
+						}
+					}
+				}
+			}
+		}
+		clusteroffsets[numclusters] = numadded;
+		clusteroffsets = Arrays.copyOf(clusteroffsets, numclusters + 1);
 	}
-	private void transformVertcies(Matrix transformmatrix) {
-		for (int i=0; i<vertcies.length; i++) {
-			Matrix.transformCoordinates(vertcies[i].position, transformmatrix, transformedvertcies[i]);			
+	
+	private void updateClusters() {
+		run(MeshTask.CLUSTERS, null, numclusters);
+	}
+	void updateClusters(int first, int last) {
+		float[] p = worldpositions;
+		for (int cluster=first; cluster<last; cluster++) {
+			int start = clusteroffsets[cluster], end = clusteroffsets[cluster + 1];
+			
+			// Box around the vertcies and face centres, then the sphere around the middle of it
+			float 
+			minx = Float.MAX_VALUE, miny = Float.MAX_VALUE, minz = Float.MAX_VALUE,
+			maxx = -Float.MAX_VALUE, maxy = -Float.MAX_VALUE, maxz = -Float.MAX_VALUE;
+			double axisx = 0, axisy = 0, axisz = 0;
+			for (int i=start; i<end; i++) {
+				int face = clusterfaces[i];
+				for (int corner=0; corner<4; corner++) {
+					float[] points = corner == 3 ? centres : p;
+					int j = corner == 3 ? face * 3 : indices[face*3 + corner] * 3;
+					minx = Math.min(minx, points[j]);
+					miny = Math.min(miny, points[j + 1]);
+					minz = Math.min(minz, points[j + 2]);
+					maxx = Math.max(maxx, points[j]);
+					maxy = Math.max(maxy, points[j + 1]);
+					maxz = Math.max(maxz, points[j + 2]);
+				}
+				axisx += normals[face*3];
+				axisy += normals[face*3 + 1];
+				axisz += normals[face*3 + 2];
+			}
+			float 
+			x = (minx + maxx) / 2,
+			y = (miny + maxy) / 2,
+			z = (minz + maxz) / 2;
+			double radiussquared = 0;
+			for (int i=start; i<end; i++) {
+				int face = clusterfaces[i];
+				for (int corner=0; corner<4; corner++) {
+					float[] points = corner == 3 ? centres : p;
+					int j = corner == 3 ? face * 3 : indices[face*3 + corner] * 3;
+					double 
+					dx = points[j] - x,
+					dy = points[j + 1] - y,
+					dz = points[j + 2] - z;
+					radiussquared = Math.max(radiussquared, dx * dx + dy * dy + dz * dz);
+				}
+			}
+			clusterspheres[cluster*4] 	  = x;
+			clusterspheres[cluster*4 + 1] = y;
+			clusterspheres[cluster*4 + 2] = z;
+			// Rounded up a little so floating point error can't leave a point outside
+			clusterspheres[cluster*4 + 3] = (float)Math.sqrt(radiussquared) * 1.0001f + 1e-6f;
+			
+			// Cone around the face normals
+			double length = Math.sqrt(axisx * axisx + axisy * axisy + axisz * axisz);
+			double mindot = -1;
+			if (length > 1e-6) {
+				axisx /= length;
+				axisy /= length;
+				axisz /= length;
+				mindot = 1;
+				for (int i=start; i<end; i++) {
+					int face = clusterfaces[i];
+					double 
+					nx = normals[face*3], ny = normals[face*3 + 1], nz = normals[face*3 + 2],
+					normallength = Math.sqrt(nx * nx + ny * ny + nz * nz);
+					if (normallength == 0) {
+						// Never culled either way, so neither can the cluster be
+						mindot = -1;
+						break;
+					}
+					mindot = Math.min(mindot, (nx * axisx + ny * axisy + nz * axisz) / normallength);
+				}
+			}
+			clustercones[cluster*4] 	= (float)axisx;
+			clustercones[cluster*4 + 1] = (float)axisy;
+			clustercones[cluster*4 + 2] = (float)axisz;
+			clustercones[cluster*4 + 3] = (float)Math.acos(Math.max(-1, Math.min(1, mindot)));
+		}
+	}
+	
+	// Meshes with at least this many vertcies are transformed in chunks across the thread pool
+	public static int getParallelThreshold() {
+		return parallelThreshold;
+	}
+	public static void setParallelThreshold(int vertcies) {
+		parallelThreshold = vertcies;
+	}
+	
+	// Runs one of the loops below over the whole mesh, in parallel if it's big enough
+	private void run(int stage, Matrix matrix, int count) {
+		if (numvertcies < parallelThreshold || ThreadPool.getThreadCount() == 1) {
+			new MeshTask(this, stage, matrix, 0, count, count).compute();
+			return;
 		}
 		
+		// A few chunks per thread so a slow one doesn't hold the rest up
+		int chunksize = Math.max(count / (ThreadPool.getThreadCount() * 4), 1024);
+		ThreadPool.get().invoke(new MeshTask(this, stage, matrix, 0, count, chunksize));
+	}
+	
+	public void projectVertcies(Matrix projectionmatrix) {
+		run(MeshTask.PROJECT, projectionmatrix, numvertcies);
+	}
+	void projectVertcies(Matrix projectionmatrix, int first, int last) {
+		for (int i=first; i<last; i++)
+			projectVertex(i, projectionmatrix);
+	}
+	// One at a time, for when only some of the vertcies are needed
+	public void projectVertex(int i, Matrix projectionmatrix) {
+		Matrix.transformHomogeneous(positions, i*3, projectionmatrix, homogeneousvertcies, i*4);
+		float w = homogeneousvertcies[i*4 + 3];
+		projectedpositions[i*3] 	= homogeneousvertcies[i*4] / w;
+		projectedpositions[i*3 + 1] = homogeneousvertcies[i*4 + 1] / w;
+		projectedpositions[i*3 + 2] = homogeneousvertcies[i*4 + 2] / w;
+		projectedinversew[i] = 1f / w;
+	}
+	private void transformVertcies(Matrix transformmatrix) {
+		run(MeshTask.TRANSFORM, transformmatrix, numvertcies);
 		updateFaces();
+		updateClusters();
+	}
+	void transformVertcies(Matrix transformmatrix, int first, int last) {
+		for (int i=first; i<last; i++) {
+			Matrix.transformCoordinates(positions, i*3, transformmatrix, worldpositions, i*3);
+		}
+	}
+	// One at a time by the world matrix, for when only some of the vertcies are needed.
+	// Leaves the faces and bounds alone
+	public void transformVertex(int i) {
+		Matrix.transformCoordinates(positions, i*3, worldmatrix, worldpositions, i*3);
+	}
+	
+	private void calculateBounds() {
+		boundsmin.set(Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
+		boundsmax.set(-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE);
+		fitBox(positions, boundsmin, boundsmax);
+		boundscentre.set(
+				(boundsmin.x + boundsmax.x) / 2,
+				(boundsmin.y + boundsmax.y) / 2,
+				(boundsmin.z + boundsmax.z) / 2
+			);
+		
+		float radiussquared = 0;
+		for (int i=0; i<numvertcies; i++) {
+			float 
+			x = positions[i*3] - boundscentre.x,
+			y = positions[i*3 + 1] - boundscentre.y,
+			z = positions[i*3 + 2] - boundscentre.z;
+			radiussquared = Math.max(radiussquared, x * x + y * y + z * z);
+		}
+		boundsradius = (float)Math.sqrt(radiussquared);
+		
+		// Vertcies start off untransformed
+		worldboundsmin.set(boundsmin);
+		worldboundsmax.set(boundsmax);
+		worldboundscentre.set(boundscentre);
+		worldboundsradius = boundsradius;
+	}
+	
+	// Only one at a time, the scene the mesh is in
+	public void setBoundsListener(BoundsListener listener) {
+		boundsListener = listener;
+	}
+	public BoundsListener getBoundsListener() {
+		return boundsListener;
+	}
+	
+	// Only scaling changes the sphere's radius. The box is the model space one moved by the matrix and boxed again,
+	// looser than fitting the vertcies but it doesn't need them to be moved first
+	private void updateWorldBounds() {
+		Matrix.transformCoordinates(boundscentre, worldmatrix, worldboundscentre);
+		worldboundsradius = boundsradius * worldmatrix.getMaxScale();
+		
+		float 
+		x = (boundsmax.x - boundsmin.x) / 2,
+		y = (boundsmax.y - boundsmin.y) / 2,
+		z = (boundsmax.z - boundsmin.z) / 2;
+		// Rounded up a little so floating point error can't leave a vertex outside
+		float 
+		extentx = (Math.abs(worldmatrix.get(0)) * x + Math.abs(worldmatrix.get(4)) * y + Math.abs(worldmatrix.get(8)) * z) * 1.0001f + 1e-6f,
+		extenty = (Math.abs(worldmatrix.get(1)) * x + Math.abs(worldmatrix.get(5)) * y + Math.abs(worldmatrix.get(9)) * z) * 1.0001f + 1e-6f,
+		extentz = (Math.abs(worldmatrix.get(2)) * x + Math.abs(worldmatrix.get(6)) * y + Math.abs(worldmatrix.get(10)) * z) * 1.0001f + 1e-6f;
+		worldboundsmin.set(worldboundscentre.x - extentx, worldboundscentre.y - extenty, worldboundscentre.z - extentz);
+		worldboundsmax.set(worldboundscentre.x + extentx, worldboundscentre.y + extenty, worldboundscentre.z + extentz);
+		
+		if (boundsListener != null)
+			boundsListener.boundsChanged(this);
+	}
+	
+	private void fitBox(float[] positions, Vector3 min, Vector3 max) {
+		float 
+		minx = min.x, miny = min.y, minz = min.z,
+		maxx = max.x, maxy = max.y, maxz = max.z;
+		for (int i=0; i<numvertcies * 3; i += 3) {
+			minx = Math.min(minx, positions[i]);
+			miny = Math.min(miny, positions[i + 1]);
+			minz = Math.min(minz, positions[i + 2]);
+			maxx = Math.max(maxx, positions[i]);
+			maxy = Math.max(maxy, positions[i + 1]);
+			maxz = Math.max(maxz, positions[i + 2]);
+		}
+		min.set(minx, miny, minz);
+		max.set(maxx, maxy, maxz);
 	}
 	
+	// Same sums as Face.updateFaceCenter and Face.updateFaceNormal
 	private void updateFaces() {
-		for (Face face : faces) {
-			face.updateFaceCenter(
-					transformedvertcies[face.vertex1],
-					transformedvertcies[face.vertex2],
-					transformedvertcies[face.vertex3]
-					);
-			face.updateFaceNormal(
-					transformedvertcies[face.vertex1],
-					transformedvertcies[face.vertex2],
-					transformedvertcies[face.vertex3]
-					);
+		run(MeshTask.FACES, null, numfaces);
+	}
+	void updateFaces(int first, int last) {
+		for (int i=first; i<last; i++)
+			updateFace(i);
+	}
+	// One at a time from the world positions of its vertcies, for when only some of the faces are needed
+	public void updateFace(int i) {
+		float[] p = worldpositions;
+		int 
+		a = indices[i*3] * 3,
+		b = indices[i*3 + 1] * 3,
+		c = indices[i*3 + 2] * 3;
+		
+		centres[i*3] 	 = (p[a] + p[b] + p[c]) / 3;
+		centres[i*3 + 1] = (p[a + 1] + p[b + 1] + p[c + 1]) / 3;
+		centres[i*3 + 2] = (p[a + 2] + p[b + 2] + p[c + 2]) / 3;
+		
+		float 
+		ux = p[b] - p[a], uy = p[b + 1] - p[a + 1], uz = p[b + 2] - p[a + 2],
+		vx = p[c] - p[a], vy = p[c + 1] - p[a + 1], vz = p[c + 2] - p[a + 2],
+		x = (uy * vz) - (uz * vy),
+		y = (uz * vx) - (ux * vz),
+		z = (ux * vy) - (uy * vx);
+		double length = Math.sqrt((x * x) + (y * y) + (z * z));
+		if (length != 0) {
+			x /= (float)length;
+			y /= (float)length;
+			z /= (float)length;
 		}
+		normals[i*3] 	 = x;
+		normals[i*3 + 1] = y;
+		normals[i*3 + 2] = z;
 	}
 	
 	public Vector3 getPosition() {
-		return position.Clone();
+		return transform.getPosition();
 	}
 	
 	public Vector3 getRotation() {
-		return rotation.Clone();
+		return transform.getRotation();
 	}
 	
+	// Setting the position or rotation, of this mesh or any transform above it, doesn't move the vertcies until update
 	public void setPosition(Vector3 pos) {
-		setPosition(pos.x, pos.y, pos.z);
+		transform.setPosition(pos);
 	}
 	//TODO: Add methods to transform raw vert's positions
 	public void setPosition(float x, float y, float z) {
-		position.x = x;
-		position.y = y;
-		position.z = z;
-		
-		updateWorldMatrix();
-		transformVertcies(worldmatrix);
+		transform.setPosition(x, y, z);
 	}
 		
 	public void setRotation(Vector3 rot) {
-		rotation = rot;
+		transform.setRotation(rot);
+	}
+	
+	// Attach to another transform to move with it
+	public Transform getTransform() {
+		return transform;
+	}
+	
+	// Moves the bounds to where the transform says if it has changed since last time, leaving the vertcies for update.
+	// The scene calls this every frame to cull with, so meshes off screen are never moved any further
+	public void updateBounds() {
+		Matrix matrix = transform.getWorldMatrix();
+		if (transform.getVersion() == transformedversion)
+			return;
+		
+		worldmatrix = matrix;
+		transformedversion = transform.getVersion();
+		stale = true;
+		updateWorldBounds();
+	}
+	
+	// Moves the vertcies, face centres, normals and bounds to where the transform says if they're behind.
+	// The rasterizer calls this before drawing, so it happens at most once a frame however many times the mesh was moved
+	public void update() {
+		updateBounds();
+		if (!stale)
+			return;
 		
-		updateWorldMatrix();
+		stale = false;
 		transformVertcies(worldmatrix);
 	}
 	
-	private void updateWorldMatrix() {
-		worldmatrix = Matrix.RotationYawPitchRoll(rotation.y, rotation.x, rotation.z)
-					  .multiply(Matrix.translation(position.x, position.y, position.z));	
+	// Makes up to this many simpler versions of the mesh, each with about a quarter of the faces of the last, by collapsing the edges that change its shape least.
+	// Stops early at meshes too small to be worth simplifying
+	public void generateLevelsOfDetail(int count) {
+		ArrayList<Float> errors = new ArrayList<Float>(count);
+		ArrayList<Mesh> meshes = Simplifier.generate(this, count, 16, errors);
+		levels = meshes.toArray(new Mesh[meshes.size()]);
+		levelerrors = new float[errors.size()];
+		for (int i=0; i<levelerrors.length; i++)
+			levelerrors[i] = errors.get(i);
+	}
+	
+	// Including this mesh, which is level 0
+	public int getNumLevelsOfDetail() {
+		return levels.length + 1;
+	}
+	// The simplified mesh, moved to where this one is and using the same texture and shader
+	public Mesh getLevelOfDetail(int level) {
+		if (level == 0)
+			return this;
+		
+		Mesh mesh = levels[level - 1];
+		mesh.texture = texture;
+		mesh.shader = shader;
+		if (mesh.worldmatrix != worldmatrix)
+			mesh.transform(worldmatrix);
+		return mesh;
+	}
+	// How far the level's surface may be from this mesh's, in model space
+	public float getLevelOfDetailError(int level) {
+		return level == 0 ? 0 : levelerrors[level - 1];
+	}
+	
+	// Moves the vertcies by the given world matrix instead of the transform's, until the transform next changes
+	public void transform(Matrix matrix) {
+		transform.getWorldMatrix();
+		transformedversion = transform.getVersion();
+		worldmatrix = matrix;
+		stale = false;
+		transformVertcies(worldmatrix);
+		updateWorldBounds();
 	}
 	
 	public void debugUVs(String imagepath) throws IOException {
@@ -118,28 +590,14 @@ public class Mesh {
 		
 		java.awt.Graphics canvas = image.createGraphics();
 		canvas.setColor(java.awt.Color.white);
-		for (Face f : faces) {
-			UVSet va = f.uv1;
-			UVSet vb = f.uv2;
-			UVSet vc = f.uv3;
-			canvas.drawLine(
-					(int)(va.u*width),
-					(int)(va.v*height),
-					(int)(vb.u*width),
-					(int)(vb.v*height)
-			);
-			canvas.drawLine(
-					(int)(vb.u*width),
-					(int)(vb.v*height),
-					(int)(vc.u*width),
-					(int)(vc.v*height)
-			);
-			canvas.drawLine(
-					(int)(vc.u*width),
-					(int)(vc.v*height),
-					(int)(va.u*width),
-					(int)(va.v*height)
-			);
+		for (int i=0; i<numfaces; i++) {
+			int 
+			ax = (int)(uvs[i*6]*width), 	ay = (int)(uvs[i*6 + 1]*height),
+			bx = (int)(uvs[i*6 + 2]*width), by = (int)(uvs[i*6 + 3]*height),
+			cx = (int)(uvs[i*6 + 4]*width), cy = (int)(uvs[i*6 + 5]*height);
+			canvas.drawLine(ax, ay, bx, by);
+			canvas.drawLine(bx, by, cx, cy);
+			canvas.drawLine(cx, cy, ax, ay);
 		}
 		
 		String extention = imagepath.substring(imagepath.lastIndexOf(".")+1);
@@ -147,16 +605,16 @@ public class Mesh {
 	}
 	
 	public void writeOBJ(FileWriter file) throws IOException {
-		for (Vertex v : vertcies) {
-			String output = "v " + v.position.x + " " + v.position.y + " " + v.position.z +"\n";
+		for (int i=0; i<numvertcies; i++) {
+			String output = "v " + positions[i*3] + " " + positions[i*3 + 1] + " " + positions[i*3 + 2] +"\n";
 			file.write(output);
 		}
-		for (Face f : faces) {
-			String output = "n " + f.normal.x + " " + f.normal.y + " " + f.normal.z + "\n";
+		for (int i=0; i<numfaces; i++) {
+			String output = "n " + normals[i*3] + " " + normals[i*3 + 1] + " " + normals[i*3 + 2] + "\n";
 			file.write(output);
 		}
-		for (Face f : faces) {
-			String out = "f " + (f.vertex1+1) + " " + (f.vertex2+1) + " " + (f.vertex3+1) + "\n";
+		for (int i=0; i<numfaces; i++) {
+			String out = "f " + (indices[i*3]+1) + " " + (indices[i*3 + 1]+1) + " " + (indices[i*3 + 2]+1) + "\n";
 			file.write(out);
 		}
 		file.flush();
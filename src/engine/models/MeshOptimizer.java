@@ -0,0 +1,221 @@
+package engine.models;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+// Reorders a mesh's faces and vertcies for speed. Faces are put in an order that reuses recently used vertcies (Tipsify, Sander et al. 2007),
+// then the runs of faces between jumps are sorted to draw the outward facing ones first so more of the rest fail the depth test.
+// Vertcies are then renumbered in the order the faces first use them so they're read front to back.
+// Renumbering vertcies never changes what's drawn. Reordering faces changes which of two faces wins a pixel they reach at exactly
+// the same depth, and the order blended faces are mixed in, so it's only done when asked for
+public final class MeshOptimizer {
+	public static final int CACHE_SIZE = 16; // Vertcies the reordering assumes are still cheap to reach
+
+	private MeshOptimizer() {}
+
+	// A copy of the mesh with its vertcies, and faces if asked, reordered, in the same place and with the same texture and shader
+	public static Mesh optimize(Mesh mesh, boolean reorderfaces) {
+		int numfaces = mesh.getNumFaces(), numvertcies = mesh.getNumVertcies();
+		int[] faceorder;
+		if (reorderfaces) {
+			int[] runs = new int[numfaces + 1];
+			faceorder = orderForCache(mesh.indices, numvertcies, numfaces, runs);
+			faceorder = orderForOverdraw(mesh, faceorder, runs, runs[numfaces]);
+		} else {
+			faceorder = new int[numfaces];
+			for (int i=0; i<numfaces; i++)
+				faceorder[i] = i;
+		}
+
+		// Faces in their new order
+		int[] indices = new int[numfaces * 3];
+		float[]
+		uvs = new float[numfaces * 6],
+		normals = new float[numfaces * 3],
+		centres = new float[numfaces * 3];
+		for (int i=0; i<numfaces; i++) {
+			int face = faceorder[i];
+			System.arraycopy(mesh.indices, face * 3, indices, i * 3, 3);
+			System.arraycopy(mesh.uvs, face * 6, uvs, i * 6, 6);
+			System.arraycopy(mesh.normals, face * 3, normals, i * 3, 3);
+			System.arraycopy(mesh.centres, face * 3, centres, i * 3, 3);
+		}
+
+		// Vertcies in the order they're first used, unused ones last so the bounds stay the same
+		int[] remap = new int[numvertcies];
+		Arrays.fill(remap, -1);
+		int next = 0;
+		for (int i=0; i<indices.length; i++) {
+			if (remap[indices[i]] == -1)
+				remap[indices[i]] = next++;
+			indices[i] = remap[indices[i]];
+		}
+		for (int vertex=0; vertex<numvertcies; vertex++)
+			if (remap[vertex] == -1)
+				remap[vertex] = next++;
+		float[] positions = new float[numvertcies * 3];
+		for (int vertex=0; vertex<numvertcies; vertex++)
+			System.arraycopy(mesh.positions, vertex * 3, positions, remap[vertex] * 3, 3);
+
+		Mesh optimized = new Mesh(positions, uvs, indices, normals, centres, mesh.texture);
+		optimized.shader = mesh.shader;
+		optimized.setPosition(mesh.getPosition());
+		optimized.setRotation(mesh.getRotation());
+		return optimized;
+	}
+
+	// Tipsify. Fans around one vertex at a time, moving on to whichever neighbour is most likely still cached.
+	// Fills runs with where each run of faces ends, a run ending wherever it had to jump somewhere unconnected, with the count at the end
+	private static int[] orderForCache(int[] indices, int numvertcies, int numfaces, int[] runs) {
+		// Faces using each vertex
+		int[] offsets = new int[numvertcies + 1];
+		for (int i=0; i<numfaces * 3; i++)
+			offsets[indices[i] + 1]++;
+		for (int i=0; i<numvertcies; i++)
+			offsets[i + 1] += offsets[i];
+		int[] vertexfaces = new int[numfaces * 3];
+		int[] livefaces = new int[numvertcies]; // Faces using each vertex not yet output
+		for (int i=0; i<numfaces * 3; i++) {
+			int vertex = indices[i];
+			vertexfaces[offsets[vertex] + livefaces[vertex]++] = i / 3;
+		}
+
+		int[] order = new int[numfaces];
+		int numordered = 0, numruns = 0;
+		boolean[] emitted = new boolean[numfaces];
+		int[] cachetimes = new int[numvertcies];
+		int time = CACHE_SIZE + 1;
+		int[] deadends = new int[numfaces * 3]; // Vertcies to go back to
+		int numdeadends = 0;
+		int[] candidates = new int[numfaces * 3];
+		int cursor = 0;
+
+		int fan = numvertcies > 0 ? 0 : -1;
+		while (fan >= 0) {
+			int numcandidates = 0;
+			for (int i=offsets[fan]; i<offsets[fan + 1]; i++) {
+				int face = vertexfaces[i];
+				if (emitted[face])
+					continue;
+
+				emitted[face] = true;
+				order[numordered++] = face;
+				for (int corner=0; corner<3; corner++) {
+					int vertex = indices[face*3 + corner];
+					deadends[numdeadends++] = vertex;
+					candidates[numcandidates++] = vertex;
+					livefaces[vertex]--;
+					if (time - cachetimes[vertex] > CACHE_SIZE)
+						cachetimes[vertex] = time++;
+				}
+			}
+
+			// The candidate that will still be in the cache after its remaining faces are output, and has been there longest
+			int best = -1, bestpriority = -1;
+			for (int i=0; i<numcandidates; i++) {
+				int vertex = candidates[i];
+				if (livefaces[vertex] == 0)
+					continue;
+
+				int priority = 0;
+				if (time - cachetimes[vertex] + 2 * livefaces[vertex] <= CACHE_SIZE)
+					priority = time - cachetimes[vertex];
+				if (priority > bestpriority) {
+					bestpriority = priority;
+					best = vertex;
+				}
+			}
+			if (best != -1) {
+				fan = best;
+				continue;
+			}
+
+			// Dead end, go back to a recent vertex with faces left, otherwise the next one in the mesh
+			if (numordered != 0 && (numruns == 0 || runs[numruns - 1] != numordered))
+				runs[numruns++] = numordered;
+			fan = -1;
+			while (numdeadends > 0) {
+				int vertex = deadends[--numdeadends];
+				if (livefaces[vertex] > 0) {
+					fan = vertex;
+					break;
+				}
+			}
+			while (fan == -1 && cursor < numvertcies) {
+				if (livefaces[cursor] > 0)
+					fan = cursor;
+				cursor++;
+			}
+		}
+		runs[numfaces] = numruns;
+
+		return order;
+	}
+
+	// Sorts the runs so the ones facing out from the middle of the mesh, which are likely to cover the others, come first
+	private static int[] orderForOverdraw(Mesh mesh, int[] order, int[] runs, int numruns) {
+		if (numruns < 2)
+			return order;
+
+		float
+		cx = mesh.boundscentre.x,
+		cy = mesh.boundscentre.y,
+		cz = mesh.boundscentre.z;
+		final double[] scores = new double[numruns];
+		Integer[] sorted = new Integer[numruns];
+		int start = 0;
+		for (int run=0; run<numruns; run++) {
+			// Area weighted normal and centre of the run
+			double nx = 0, ny = 0, nz = 0, px = 0, py = 0, pz = 0, area = 0;
+			for (int i=start; i<runs[run]; i++) {
+				int face = order[i];
+				int
+				a = mesh.indices[face*3] * 3,
+				b = mesh.indices[face*3 + 1] * 3,
+				c = mesh.indices[face*3 + 2] * 3;
+				float[] p = mesh.positions;
+				double
+				ux = p[b] - p[a], uy = p[b+1] - p[a+1], uz = p[b+2] - p[a+2],
+				vx = p[c] - p[a], vy = p[c+1] - p[a+1], vz = p[c+2] - p[a+2],
+				x = uy * vz - uz * vy,
+				y = uz * vx - ux * vz,
+				z = ux * vy - uy * vx,
+				facearea = Math.sqrt(x * x + y * y + z * z);
+				nx += x;
+				ny += y;
+				nz += z;
+				px += facearea * (p[a] + p[b] + p[c]) / 3;
+				py += facearea * (p[a+1] + p[b+1] + p[c+1]) / 3;
+				pz += facearea * (p[a+2] + p[b+2] + p[c+2]) / 3;
+				area += facearea;
+			}
+			if (area > 0) {
+				px /= area;
+				py /= area;
+				pz /= area;
+			}
+			double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+			scores[run] = length == 0 ? 0 : ((px - cx) * nx + (py - cy) * ny + (pz - cz) * nz) / length;
+			sorted[run] = run;
+			start = runs[run];
+		}
+
+		Arrays.sort(sorted, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(scores[b], scores[a]);
+			}
+		});
+
+		int[] reordered = new int[order.length];
+		int next = 0;
+		for (int run : sorted) {
+			int first = run == 0 ? 0 : runs[run - 1];
+			int length = runs[run] - first;
+			System.arraycopy(order, first, reordered, next, length);
+			next += length;
+		}
+
+		return reordered;
+	}
+}
@@ -0,0 +1,58 @@
+package engine.models;
+
+import java.util.concurrent.RecursiveAction;
+
+import engine.math.Matrix;
+
+// Splits one of a mesh's per-vertex or per-face loops into chunks. Each element only writes its own slots, so the result is the same as the serial loop
+final class MeshTask extends RecursiveAction {
+	private static final long serialVersionUID = 4420785071952474930L;
+	
+	public static final int 
+	PROJECT = 0, // Vertcies, by projectVertcies
+	TRANSFORM = 1, // Vertcies, by transformVertcies
+	FACES = 2, // Faces, by updateFaces
+	CLUSTERS = 3; // Clusters, by updateClusters
+	
+	private final Mesh mesh;
+	private final int stage;
+	private final Matrix matrix;
+	private final int first, last; // Last is exclusive
+	private final int chunksize;
+	
+	public MeshTask(Mesh mesh, int stage, Matrix matrix, int first, int last, int chunksize) {
+		this.mesh = mesh;
+		this.stage = stage;
+		this.matrix = matrix;
+		this.first = first;
+		this.last = last;
+		this.chunksize = chunksize;
+	}
+
+	@Override
+	protected void compute() {
+		if (last - first > chunksize) {
+			int middle = (first + last) >>> 1;
+			invokeAll(
+					new MeshTask(mesh, stage, matrix, first, middle, chunksize),
+					new MeshTask(mesh, stage, matrix, middle, last, chunksize)
+				);
+			return;
+		}
+		
+		switch (stage) {
+			case PROJECT:
+				mesh.projectVertcies(matrix, first, last);
+				break;
+			case TRANSFORM:
+				mesh.transformVertcies(matrix, first, last);
+				break;
+			case FACES:
+				mesh.updateFaces(first, last);
+				break;
+			case CLUSTERS:
+				mesh.updateClusters(first, last);
+				break;
+		}
+	}
+}
@@ -0,0 +1,447 @@
+package engine.models;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Makes coarser versions of a mesh by collapsing edges in order of least quadric error (Garland & Heckbert).
+// A vertex is always collapsed onto one of its neighbours, so every remaining vertex and UV is one of the originals
+final class Simplifier {
+	private static final double BOUNDARY_WEIGHT = 100; // How much more it costs to move a mesh's open edges than its surface
+	
+	private final float[] positions;
+	private final float[] uvs;
+	private final int[] indices; // Kept up to date as vertcies are collapsed
+	private final int numvertcies, numfaces;
+	private int livefaces;
+	
+	private final double[] quadrics; // 10 unique values of each vertex's symmetric 4x4 error matrix
+	private int[][] vertexfaces; // Faces using each vertex
+	private final int[] numvertexfaces;
+	private final boolean[] removedvertex, removedface;
+	private final int[] versions; // Goes up whenever a vertex's quadric changes, so old queued collapses can be recognised
+	private final int[] marks; // Scratch for finding neighbours
+	private int mark = 0;
+	private final double[] before = new double[3], after = new double[3]; // Scratch face normals
+	private double maxerror = 0;
+	
+	// Queued collapses as a binary heap on the cost, kept in plain arrays as there are millions of them
+	private double[] queuecosts = new double[1024];
+	private int[] queuefroms = new int[1024], queuetos = new int[1024];
+	private long[] queueversions = new long[1024]; // Versions of from and to when it was queued
+	private int queuesize = 0;
+	
+	public Simplifier(Mesh mesh) {
+		positions = mesh.positions;
+		uvs = mesh.uvs;
+		indices = Arrays.copyOf(mesh.indices, mesh.getNumFaces() * 3);
+		numvertcies = mesh.getNumVertcies();
+		numfaces = mesh.getNumFaces();
+		livefaces = numfaces;
+		
+		quadrics = new double[numvertcies * 10];
+		numvertexfaces = new int[numvertcies];
+		vertexfaces = new int[numvertcies][];
+		removedvertex = new boolean[numvertcies];
+		removedface = new boolean[numfaces];
+		versions = new int[numvertcies];
+		marks = new int[numvertcies];
+		
+		for (int i=0; i<numvertcies; i++)
+			vertexfaces[i] = new int[6];
+		for (int face=0; face<numfaces; face++) {
+			for (int corner=0; corner<3; corner++)
+				addVertexFace(indices[face*3 + corner], face);
+			addFaceQuadric(face);
+		}
+		addBoundaryQuadrics();
+		
+		for (int vertex=0; vertex<numvertcies; vertex++)
+			queueCollapses(vertex, true);
+	}
+	
+	public int getNumFaces() {
+		return livefaces;
+	}
+	
+	// Largest error of any collapse so far, roughly how far the surface has moved in model space
+	public float getError() {
+		return (float)Math.sqrt(maxerror);
+	}
+	
+	// Collapses edges until there are at most this many faces or no collapse is left that wouldn't fold the surface over
+	public void simplify(int targetfaces) {
+		while (livefaces > targetfaces && queuesize != 0) {
+			double cost = queuecosts[0];
+			int from = queuefroms[0], to = queuetos[0];
+			long version = queueversions[0];
+			pop();
+			
+			if (removedvertex[from] || removedvertex[to] || getVersions(from, to) != version)
+				continue; // Out of date
+			
+			if (!canCollapse(from, to))
+				continue;
+			
+			collapse(from, to);
+			maxerror = Math.max(maxerror, cost);
+		}
+	}
+	
+	// A mesh of the faces left, with only the vertcies they use
+	public Mesh toMesh(Texture texture) {
+		int[] remap = new int[numvertcies];
+		Arrays.fill(remap, -1);
+		int numused = 0;
+		float[] newpositions = new float[numvertcies * 3];
+		int[] newindices = new int[livefaces * 3];
+		float[] newuvs = new float[livefaces * 6];
+		
+		int newface = 0;
+		for (int face=0; face<numfaces; face++) {
+			if (removedface[face])
+				continue;
+			
+			for (int corner=0; corner<3; corner++) {
+				int vertex = indices[face*3 + corner];
+				if (remap[vertex] == -1) {
+					System.arraycopy(positions, vertex * 3, newpositions, numused * 3, 3);
+					remap[vertex] = numused++;
+				}
+				newindices[newface*3 + corner] = remap[vertex];
+			}
+			System.arraycopy(uvs, face * 6, newuvs, newface * 6, 6);
+			newface++;
+		}
+		
+		return new Mesh(Arrays.copyOf(newpositions, numused * 3), newuvs, newindices, texture);
+	}
+	
+	private void addVertexFace(int vertex, int face) {
+		int[] faces = vertexfaces[vertex];
+		if (numvertexfaces[vertex] == faces.length)
+			vertexfaces[vertex] = faces = Arrays.copyOf(faces, faces.length * 2);
+		faces[numvertexfaces[vertex]++] = face;
+	}
+	
+	// Squared distance to the face's plane, added to each of its vertcies
+	private void addFaceQuadric(int face) {
+		int
+		a = indices[face*3] * 3,
+		b = indices[face*3 + 1] * 3,
+		c = indices[face*3 + 2] * 3;
+		double
+		ux = positions[b] - positions[a], uy = positions[b+1] - positions[a+1], uz = positions[b+2] - positions[a+2],
+		vx = positions[c] - positions[a], vy = positions[c+1] - positions[a+1], vz = positions[c+2] - positions[a+2],
+		nx = uy * vz - uz * vy,
+		ny = uz * vx - ux * vz,
+		nz = ux * vy - uy * vx,
+		length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+		if (length == 0)
+			return;
+		
+		nx /= length;
+		ny /= length;
+		nz /= length;
+		double d = -(nx * positions[a] + ny * positions[a+1] + nz * positions[a+2]);
+		for (int corner=0; corner<3; corner++)
+			addPlane(indices[face*3 + corner], nx, ny, nz, d, 1);
+	}
+	
+	// Open edges get a steep plane through them at right angles to their face, so they keep their outline
+	private void addBoundaryQuadrics() {
+		// Sorted, an edge used by only one face is one that isn't next to a copy of itself
+		long[] edges = new long[numfaces * 3];
+		for (int face=0; face<numfaces; face++)
+			for (int corner=0; corner<3; corner++)
+				edges[face*3 + corner] = edgeKey(indices[face*3 + corner], indices[face*3 + (corner + 1) % 3]);
+		Arrays.sort(edges);
+		
+		for (int face=0; face<numfaces; face++) {
+			for (int corner=0; corner<3; corner++) {
+				int
+				a = indices[face*3 + corner],
+				b = indices[face*3 + (corner + 1) % 3],
+				c = indices[face*3 + (corner + 2) % 3];
+				long key = edgeKey(a, b);
+				int i = Arrays.binarySearch(edges, key);
+				if ((i > 0 && edges[i - 1] == key) || (i + 1 < edges.length && edges[i + 1] == key))
+					continue;
+				
+				double
+				ex = positions[b*3] - positions[a*3], ey = positions[b*3+1] - positions[a*3+1], ez = positions[b*3+2] - positions[a*3+2],
+				vx = positions[c*3] - positions[a*3], vy = positions[c*3+1] - positions[a*3+1], vz = positions[c*3+2] - positions[a*3+2],
+				fx = ey * vz - ez * vy, // Face normal
+				fy = ez * vx - ex * vz,
+				fz = ex * vy - ey * vx,
+				nx = ey * fz - ez * fy, // At right angles to both the edge and the face
+				ny = ez * fx - ex * fz,
+				nz = ex * fy - ey * fx,
+				length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+				if (length == 0)
+					continue;
+				
+				nx /= length;
+				ny /= length;
+				nz /= length;
+				double d = -(nx * positions[a*3] + ny * positions[a*3+1] + nz * positions[a*3+2]);
+				addPlane(a, nx, ny, nz, d, BOUNDARY_WEIGHT);
+				addPlane(b, nx, ny, nz, d, BOUNDARY_WEIGHT);
+			}
+		}
+	}
+	
+	private static long edgeKey(int a, int b) {
+		return ((long)Math.min(a, b) << 32) | Math.max(a, b);
+	}
+	
+	private void addPlane(int vertex, double a, double b, double c, double d, double weight) {
+		int i = vertex * 10;
+		quadrics[i]   += weight * a * a;
+		quadrics[i+1] += weight * a * b;
+		quadrics[i+2] += weight * a * c;
+		quadrics[i+3] += weight * a * d;
+		quadrics[i+4] += weight * b * b;
+		quadrics[i+5] += weight * b * c;
+		quadrics[i+6] += weight * b * d;
+		quadrics[i+7] += weight * c * c;
+		quadrics[i+8] += weight * c * d;
+		quadrics[i+9] += weight * d * d;
+	}
+	
+	// Error of moving from onto to, using both their quadrics
+	private double getCost(int from, int to) {
+		int f = from * 10, t = to * 10;
+		double
+		x = positions[to*3], y = positions[to*3 + 1], z = positions[to*3 + 2],
+		q0 = quadrics[f]   + quadrics[t],   q1 = quadrics[f+1] + quadrics[t+1],
+		q2 = quadrics[f+2] + quadrics[t+2], q3 = quadrics[f+3] + quadrics[t+3],
+		q4 = quadrics[f+4] + quadrics[t+4], q5 = quadrics[f+5] + quadrics[t+5],
+		q6 = quadrics[f+6] + quadrics[t+6], q7 = quadrics[f+7] + quadrics[t+7],
+		q8 = quadrics[f+8] + quadrics[t+8], q9 = quadrics[f+9] + quadrics[t+9];
+		double cost =
+				q0 * x * x + 2 * q1 * x * y + 2 * q2 * x * z + 2 * q3 * x
+				+ q4 * y * y + 2 * q5 * y * z + 2 * q6 * y
+				+ q7 * z * z + 2 * q8 * z
+				+ q9;
+		return Math.max(cost, 0);
+	}
+	
+	private long getVersions(int from, int to) {
+		return ((long)versions[from] << 32) | (versions[to] & 0xFFFFFFFFL);
+	}
+	
+	private void push(double cost, int from, int to) {
+		if (queuesize == queuecosts.length) {
+			int size = queuesize * 2;
+			queuecosts = Arrays.copyOf(queuecosts, size);
+			queuefroms = Arrays.copyOf(queuefroms, size);
+			queuetos = Arrays.copyOf(queuetos, size);
+			queueversions = Arrays.copyOf(queueversions, size);
+		}
+		
+		long version = getVersions(from, to);
+		int i = queuesize++;
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (queuecosts[parent] <= cost)
+				break;
+			
+			move(parent, i);
+			i = parent;
+		}
+		queuecosts[i] = cost;
+		queuefroms[i] = from;
+		queuetos[i] = to;
+		queueversions[i] = version;
+	}
+	
+	// Removes the cheapest
+	private void pop() {
+		int last = --queuesize;
+		double cost = queuecosts[last];
+		int i = 0;
+		while (true) {
+			int child = i * 2 + 1;
+			if (child >= last)
+				break;
+			if (child + 1 < last && queuecosts[child + 1] < queuecosts[child])
+				child++;
+			if (cost <= queuecosts[child])
+				break;
+			
+			move(child, i);
+			i = child;
+		}
+		move(last, i);
+	}
+	
+	private void move(int from, int to) {
+		queuecosts[to] = queuecosts[from];
+		queuefroms[to] = queuefroms[from];
+		queuetos[to] = queuetos[from];
+		queueversions[to] = queueversions[from];
+	}
+	
+	// Both ways along every edge from the vertex. When queueing every vertex, each edge only needs queueing from one end
+	private void queueCollapses(int vertex, boolean once) {
+		int[] faces = vertexfaces[vertex];
+		mark++;
+		for (int i=0; i<numvertexfaces[vertex]; i++) {
+			int face = faces[i];
+			if (removedface[face])
+				continue;
+			
+			for (int corner=0; corner<3; corner++) {
+				int other = indices[face*3 + corner];
+				if (other == vertex || marks[other] == mark || (once && other < vertex))
+					continue;
+				
+				marks[other] = mark;
+				push(getCost(vertex, other), vertex, other);
+				push(getCost(other, vertex), other, vertex);
+			}
+		}
+	}
+	
+	private boolean canCollapse(int from, int to) {
+		// Only the two faces either side of the edge may share both ends' neighbours, otherwise the surface would pinch
+		mark++;
+		int[] faces = vertexfaces[from];
+		for (int i=0; i<numvertexfaces[from]; i++) {
+			int face = faces[i];
+			if (removedface[face])
+				continue;
+			
+			for (int corner=0; corner<3; corner++)
+				marks[indices[face*3 + corner]] = mark;
+		}
+		int shared = 0;
+		int[] tofaces = vertexfaces[to];
+		int sharedmark = ++mark;
+		for (int i=0; i<numvertexfaces[to]; i++) {
+			int face = tofaces[i];
+			if (removedface[face])
+				continue;
+			
+			for (int corner=0; corner<3; corner++) {
+				int vertex = indices[face*3 + corner];
+				if (vertex != from && vertex != to && marks[vertex] == sharedmark - 1) {
+					marks[vertex] = sharedmark;
+					shared++;
+				}
+			}
+		}
+		if (shared > 2)
+			return false;
+		
+		// No face left around from may turn over
+		for (int i=0; i<numvertexfaces[from]; i++) {
+			int face = faces[i];
+			if (removedface[face] || usesVertex(face, to))
+				continue;
+			
+			if (!keepsFacing(face, from, to))
+				return false;
+		}
+		
+		return true;
+	}
+	
+	private boolean usesVertex(int face, int vertex) {
+		return indices[face*3] == vertex || indices[face*3 + 1] == vertex || indices[face*3 + 2] == vertex;
+	}
+	
+	// Whether the face still points the same way with from moved to to
+	private boolean keepsFacing(int face, int from, int to) {
+		getNormal(face, -1, -1, before);
+		getNormal(face, from, to, after);
+		double dot = before[0] * after[0] + before[1] * after[1] + before[2] * after[2];
+		double lengths = Math.sqrt(
+				(before[0] * before[0] + before[1] * before[1] + before[2] * before[2])
+				* (after[0] * after[0] + after[1] * after[1] + after[2] * after[2])
+			);
+		
+		// Slivers count as turned over too
+		return lengths != 0 && dot > 0.2 * lengths;
+	}
+	
+	private void getNormal(int face, int from, int to, double[] out) {
+		int
+		a = indices[face*3],
+		b = indices[face*3 + 1],
+		c = indices[face*3 + 2];
+		if (a == from) a = to;
+		if (b == from) b = to;
+		if (c == from) c = to;
+		double
+		ux = positions[b*3] - positions[a*3], uy = positions[b*3+1] - positions[a*3+1], uz = positions[b*3+2] - positions[a*3+2],
+		vx = positions[c*3] - positions[a*3], vy = positions[c*3+1] - positions[a*3+1], vz = positions[c*3+2] - positions[a*3+2];
+		out[0] = uy * vz - uz * vy;
+		out[1] = uz * vx - ux * vz;
+		out[2] = ux * vy - uy * vx;
+	}
+	
+	private void collapse(int from, int to) {
+		int[] faces = vertexfaces[from];
+		for (int i=0; i<numvertexfaces[from]; i++) {
+			int face = faces[i];
+			if (removedface[face])
+				continue;
+			
+			if (usesVertex(face, to)) {
+				// The faces either side of the edge disappear
+				removedface[face] = true;
+				livefaces--;
+				continue;
+			}
+			
+			for (int corner=0; corner<3; corner++)
+				if (indices[face*3 + corner] == from)
+					indices[face*3 + corner] = to;
+			addVertexFace(to, face);
+		}
+		
+		for (int i=0; i<10; i++)
+			quadrics[to*10 + i] += quadrics[from*10 + i];
+		removedvertex[from] = true;
+		vertexfaces[from] = null;
+		numvertexfaces[from] = 0;
+		versions[to]++;
+		
+		compactVertexFaces(to);
+		queueCollapses(to, false);
+	}
+	
+	// Drops removed faces from the vertex's list so it doesn't keep growing
+	private void compactVertexFaces(int vertex) {
+		int[] faces = vertexfaces[vertex];
+		int count = 0;
+		for (int i=0; i<numvertexfaces[vertex]; i++)
+			if (!removedface[faces[i]])
+				faces[count++] = faces[i];
+		numvertexfaces[vertex] = count;
+	}
+	
+	// The mesh at each level of detail, each with about a quarter of the faces of the one before, down to at least minfaces.
+	// Errors are filled with how far each level's surface may have moved from the original
+	public static ArrayList<Mesh> generate(Mesh mesh, int levels, int minfaces, ArrayList<Float> errors) {
+		ArrayList<Mesh> meshes = new ArrayList<Mesh>(levels);
+		Simplifier simplifier = new Simplifier(mesh);
+		int target = mesh.getNumFaces();
+		for (int level=0; level<levels; level++) {
+			target /= 4;
+			if (target < minfaces)
+				break;
+			
+			int before = simplifier.getNumFaces();
+			simplifier.simplify(target);
+			if (simplifier.getNumFaces() == before)
+				break; // Nothing left it can collapse
+			
+			meshes.add(simplifier.toMesh(mesh.texture));
+			errors.add(simplifier.getError());
+		}
+		
+		return meshes;
+	}
+}
@@ -9,6 +9,23 @@ public abstract class Texture {
 	public static final ColorTexture error = new ColorTexture(new Color(java.awt.Color.magenta));
 	
 	public abstract Color map(float tu, float tv);
+	// The same texel packed as ARGB, without going through a Color
+	public int mapARGB(float tu, float tv) {
+		return map(tu, tv).toARGB();
+	}
+	// The texel at a level of detail from getLevelOfDetail. Textures without smaller copies ignore it
+	public int mapARGB(float tu, float tv, float lod) {
+		return mapARGB(tu, tv);
+	}
+	
+	// Which smaller copy to sample, from how far u and v move per pixel across and down the screen. 0 is full size, each step up halves it
+	public float getLevelOfDetail(float dudx, float dvdx, float dudy, float dvdy) {
+		return 0;
+	}
+	// Whether sampling looks at the level of detail or filters, so the rasterizer knows if it's worth working out
+	public boolean isFiltered() {
+		return false;
+	}
 	
 	public abstract BufferedImage toBufferedImage();
 }
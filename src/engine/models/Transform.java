@@ -0,0 +1,99 @@
+package engine.models;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import engine.math.Matrix;
+import engine.math.Vector3;
+
+// A position and rotation relative to an optional parent, so parts of a model can be moved together like a matrix stack.
+// Changing one only marks it and its children dirty, the world matrix is worked out the next time it's asked for
+public class Transform {
+	private Vector3 
+	position = new Vector3(0,0,0),
+	rotation = new Vector3(0,0,0);
+	private Transform parent;
+	private ArrayList<Transform> children = new ArrayList<Transform>();
+	
+	private Matrix worldmatrix;
+	private boolean dirty = true;
+	private int version = 0; // Goes up every time the world matrix is worked out again
+	
+	public Transform() {}
+	
+	public Vector3 getPosition() {
+		return position.Clone();
+	}
+	public void setPosition(Vector3 pos) {
+		setPosition(pos.x, pos.y, pos.z);
+	}
+	public void setPosition(float x, float y, float z) {
+		position.set(x, y, z);
+		markDirty();
+	}
+	
+	// Yaw is y, pitch is x and roll is z
+	public Vector3 getRotation() {
+		return rotation.Clone();
+	}
+	public void setRotation(Vector3 rot) {
+		setRotation(rot.x, rot.y, rot.z);
+	}
+	public void setRotation(float x, float y, float z) {
+		rotation.set(x, y, z);
+		markDirty();
+	}
+	
+	public Transform getParent() {
+		return parent;
+	}
+	// Null to detach
+	public void setParent(Transform newparent) {
+		for (Transform ancestor = newparent; ancestor != null; ancestor = ancestor.parent)
+			if (ancestor == this)
+				throw new IllegalArgumentException("Transform can't be its own ancestor.");
+		
+		if (parent != null)
+			parent.children.remove(this);
+		parent = newparent;
+		if (parent != null)
+			parent.children.add(this);
+		markDirty();
+	}
+	public List<Transform> getChildren() {
+		return Collections.unmodifiableList(children);
+	}
+	
+	// Local rotation then translation, then the parent's world matrix
+	public Matrix getWorldMatrix() {
+		if (dirty) {
+			worldmatrix = Matrix.RotationYawPitchRoll(rotation.y, rotation.x, rotation.z)
+					  .multiply(Matrix.translation(position.x, position.y, position.z));
+			if (parent != null)
+				worldmatrix.multiply(parent.getWorldMatrix());
+			
+			dirty = false;
+			version++;
+		}
+		
+		return worldmatrix;
+	}
+	
+	public boolean isDirty() {
+		return dirty;
+	}
+	public int getVersion() {
+		return version;
+	}
+	
+	// Children of a dirty transform are always dirty too, so there's no need to go past one
+	private void markDirty() {
+		if (dirty)
+			return;
+		
+		dirty = true;
+		for (Transform child : children)
+			child.markDirty();
+	}
+}
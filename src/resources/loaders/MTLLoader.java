@@ -9,7 +9,6 @@ import java.util.ArrayList;
 
 import engine.math.Color;
 import engine.models.Material;
-import engine.models.Materials.ImageTexture;
 import engine.models.Materials.UnsupportedDimensionException;
 
 public final class MTLLoader {
@@ -52,7 +51,7 @@ public final class MTLLoader {
 						throw new MalformException("Missing texture location in material " + currentmaterial.name + " on line " + linenumber + ".");
 					
 					if (lineparts[1].contains(":")) { // Is absolute path
-						currentmaterial.texture = new ImageTexture(lineparts[1]);
+						currentmaterial.texture = TextureCache.load(lineparts[1]);
 					} else {
 						String folder = path.substring(0, path.lastIndexOf("/") + 1);
 						String filepath = lineparts[1];
@@ -60,7 +59,7 @@ public final class MTLLoader {
 						if (filepath.startsWith("/"))
 							filepath = filepath.substring(1);
 						
-						currentmaterial.texture = new ImageTexture(folder + lineparts[1]);
+						currentmaterial.texture = TextureCache.load(folder + lineparts[1]);
 					}
 				}
 			}
@@ -5,26 +5,39 @@ import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
+import java.util.Arrays;
 
-import engine.math.Color;
-import engine.math.Vector3;
-import engine.models.Face;
 import engine.models.Mesh;
+import engine.models.MeshOptimizer;
 import engine.models.Texture;
-import engine.models.UVSet;
-import engine.models.Vertex;
 import engine.models.Materials.ColorTexture;
-import engine.models.Materials.ImageTexture;
 import engine.models.Materials.UnsupportedDimensionException;
 import utils.Log;
 
 public class OBJLoader {
+	// Also generates up to this many levels of detail, for drawing the model when it's small on screen
+	public static Mesh load(String path, int levelsofdetail) throws IOException, MalformException, IndexOutOfBoundsException, UnsupportedDimensionException {
+		Mesh mesh = load(path);
+		mesh.generateLevelsOfDetail(levelsofdetail);
+		return mesh;
+	}
+	// With optimize set it goes through MeshOptimizer first, which reorders the faces for the vertex cache and overdraw
+	// and renumbers the vertcies in the order they're used. Otherwise it's loaded just as it is in the file
+	public static Mesh load(String path, int levelsofdetail, boolean optimize) throws IOException, MalformException, IndexOutOfBoundsException, UnsupportedDimensionException {
+		if (!optimize)
+			return load(path, levelsofdetail);
+		
+		Mesh mesh = MeshOptimizer.optimize(load(path), true);
+		mesh.generateLevelsOfDetail(levelsofdetail);
+		return mesh;
+	}
+	
 	public static Mesh load(String path) throws IOException, MalformException, IndexOutOfBoundsException, UnsupportedDimensionException {
 		Texture texture = ColorTexture.error;
-		ArrayList<Vertex> vertlist = new ArrayList<Vertex>(100);
-		ArrayList<UVSet> uvlist = new ArrayList<UVSet>(100);
-		ArrayList<Face> facelist = new ArrayList<Face>(100);
+		// Read straight into flat arrays, grown as needed, rather than an object per vertex and face
+		float[] positions = new float[300], uvlist = new float[200], uvs = new float[600];
+		int[] indices = new int[300];
+		int numvertcies = 0, numuvs = 0, numfaces = 0;
 		
 		BufferedReader objfilereader = new BufferedReader(new InputStreamReader(new DataInputStream(new FileInputStream(path))));
 		while(!objfilereader.ready()){}
@@ -36,35 +49,25 @@ public class OBJLoader {
 			
 			if (line.startsWith("v ")) {
 				String[] values = line.substring(2).split(" ");
-				Vertex newvertex = null;
-					if (values.length >= 3) {
-						newvertex = new Vertex(new Vector3(
-								Float.valueOf(values[0]),
-								Float.valueOf(values[1]),
-								Float.valueOf(values[2])
-							));
-					}
-					if (values.length >= 6) {
-						newvertex.color = new Color(
-								Float.valueOf(values[3]),
-								Float.valueOf(values[4]),
-								Float.valueOf(values[5])
-								);
-					} 
-					
-					if (newvertex != null) {
-						vertlist.add(newvertex);						
-					} else {
+					if (values.length < 3) {
 						Log.writeLine("Error parsing vertex in obj file '" + path + "' on line " + linenumber);
 						throw new MalformException("Error parsing vertex on line " + linenumber);
 					}
+					
+					if (positions.length < (numvertcies + 1) * 3)
+						positions = Arrays.copyOf(positions, positions.length * 2);
+					positions[numvertcies*3] 	 = Float.valueOf(values[0]);
+					positions[numvertcies*3 + 1] = Float.valueOf(values[1]);
+					positions[numvertcies*3 + 2] = Float.valueOf(values[2]);
+					numvertcies++;
 			
 			} else if (line.startsWith("vt ")) {
 				String[] values = line.substring(3).split(" ");
-				uvlist.add(new UVSet(
-							Float.valueOf(values[0]),
-							1f-Float.valueOf(values[1])
-						));
+				if (uvlist.length < (numuvs + 1) * 2)
+					uvlist = Arrays.copyOf(uvlist, uvlist.length * 2);
+				uvlist[numuvs*2] 	 = Float.valueOf(values[0]);
+				uvlist[numuvs*2 + 1] = 1f-Float.valueOf(values[1]);
+				numuvs++;
 					
 			} else if (line.startsWith("f ")) {
 				String[] components = line.substring(2).split(" ");
@@ -78,7 +81,7 @@ public class OBJLoader {
 					for (String component : components) {
 						String[] subcomponents = component.split("/"); 
 						int vertexpointer = Integer.valueOf(subcomponents[0])-1;
-						if (vertexpointer >= vertlist.size())
+						if (vertexpointer >= numvertcies)
 							throw new IndexOutOfBoundsException("Pointer to undefined Vertex (" + indicies[3] + ") on line " + linenumber + ".");
 						
 						indicies[i] = vertexpointer;// Add vertex indexes
@@ -86,7 +89,7 @@ public class OBJLoader {
 						if (subcomponents.length > 1) { // Has UV?
 							if (subcomponents[1].length() != 0) { // Is it not blank?
 								int uvpointer = Integer.valueOf(subcomponents[1])-1;
-								if (uvpointer >= uvlist.size())
+								if (uvpointer >= numuvs)
 									throw new IndexOutOfBoundsException("Pointer to undefined UV coordinate (" + indicies[3] + ") on line " + linenumber + ".");
 								
 								indicies[i+3] = uvpointer; // Add U, V indexes
@@ -95,62 +98,37 @@ public class OBJLoader {
 						i++;
 					}
 				}
-					
-				Vertex 
-				v1 = vertlist.get(indicies[0]),
-				v2 = vertlist.get(indicies[1]),
-				v3 = vertlist.get(indicies[2]);
-				Face newface;
-				if (uvlist.size() != 0) {
-					newface = new Face(
-							indicies[0],
-							indicies[1],
-							indicies[2],
-							uvlist.get(indicies[3]),
-							uvlist.get(indicies[4]),
-							uvlist.get(indicies[5])
-							);
-				} else {
-					newface = new Face(
-							indicies[0],
-							indicies[1],
-							indicies[2],
-							UVSet.zero,
-							UVSet.zero,
-							UVSet.zero
-							);
-				}
 				
-				//TODO: Move to Model class
-				newface.normal = Face.getNormal(
-						v1.position,
-						v2.position,
-						v3.position
-						).normalize();
-				
-				facelist.add(newface);
+				if (indices.length < (numfaces + 1) * 3) {
+					indices = Arrays.copyOf(indices, indices.length * 2);
+					uvs = Arrays.copyOf(uvs, uvs.length * 2);
+				}
+				for (int i=0; i<3; i++) {
+					indices[numfaces*3 + i] = indicies[i];
+					if (numuvs != 0) {
+						uvs[numfaces*6 + i*2] 	  = uvlist[indicies[i+3]*2];
+						uvs[numfaces*6 + i*2 + 1] = uvlist[indicies[i+3]*2 + 1];
+					} // Otherwise left at zero
+				}
+				numfaces++;
 			} else if (line.startsWith("tex")) { // Just for testing, not actually part of the specification
-				if (uvlist.size() == 0)
+				if (numuvs == 0)
 					Log.writeLine("Texture added for model with no UVs");
 				
 				String folder = path.substring(0, path.lastIndexOf("/") + 1);
-				texture = new ImageTexture(folder + line.substring(4));
+				texture = TextureCache.load(folder + line.substring(4));
 			}
 		}
 		
 		objfilereader.close();
 		
-		// Convert to lists
-		Vertex[] vertcies = new Vertex[vertlist.size()];
-		for (int i=0; i<vertlist.size(); i++)
-			vertcies[i] = vertlist.get(i);
-		
-		Face[] faces = new Face[facelist.size()];
-		for (int i=0; i<facelist.size(); i++)
-			faces[i] = facelist.get(i);
-		
-		//System.out.println("Loaded model with " + vertcies.length + " vertcies and " + faces.length + " faces.");
-		return new Mesh(vertcies, faces, texture);
+		// Trim to size, the mesh works out the face normals
+		return new Mesh(
+				Arrays.copyOf(positions, numvertcies * 3), 
+				Arrays.copyOf(uvs, numfaces * 6), 
+				Arrays.copyOf(indices, numfaces * 3), 
+				texture
+			);
 	}
 	
 	//TOOD: Method to create triangular faces out of list of verts and UVs
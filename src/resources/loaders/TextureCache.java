@@ -0,0 +1,116 @@
+package resources.loaders;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import engine.models.Materials.ImageTexture;
+import engine.models.Materials.UnsupportedDimensionException;
+
+// Image files loaded once for the whole process, however many models use them. A file is looked up by its canonical path
+// and loaded again if it has been modified since.
+// Each load gets a texture of its own that shares the texels and mipmaps of the one the cache keeps, so every user can set
+// its own repeat, offset, filter and layout without changing anyone else's.
+// Textures are kept up to a budget of bytes, past which the least recently asked for that nothing uses any more are let go.
+// Ones still in use are counted but never let go of, as that wouldn't free them, so the cache can be over budget while they're held
+public final class TextureCache {
+	private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true); // Least recently used first
+	private static long 
+	budget = 256L * 1024 * 1024,
+	size; // Bytes of every texture kept, in use or not
+	private static int hits, misses, evictions;
+	
+	private TextureCache() {}
+	
+	// Loads are done one at a time so two models asking for the same file at once don't both load it
+	public static synchronized ImageTexture load(String path) throws IOException, UnsupportedDimensionException {
+		File file = new File(path);
+		String key = file.getCanonicalPath();
+		long modified = file.lastModified();
+		Entry entry = entries.get(key);
+		if (entry != null && entry.modified == modified) {
+			hits++;
+		} else {
+			misses++;
+			entry = new Entry(modified, new ImageTexture(key)); // Replaces one that's out of date
+			entries.put(key, entry);
+		}
+		
+		ImageTexture texture = new ImageTexture(entry.texture);
+		entry.addUser(texture);
+		evict();
+		return texture;
+	}
+	
+	// Lets go of textures until the cache is within it, or only ones in use are left
+	public static synchronized void setBudget(long bytes) {
+		budget = bytes;
+		evict();
+	}
+	public static synchronized long getBudget() {
+		return budget;
+	}
+	
+	public static synchronized long getSize() {
+		count();
+		return size;
+	}
+	public static synchronized int getHits() {
+		return hits;
+	}
+	public static synchronized int getMisses() {
+		return misses;
+	}
+	public static synchronized int getEvictions() {
+		return evictions;
+	}
+	
+	private static void evict() {
+		count();
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (size > budget && iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if (entry.isInUse())
+				continue;
+			
+			iterator.remove();
+			size -= entry.texture.getSizeInBytes();
+			evictions++;
+		}
+	}
+	
+	// Counted again each time, as users may have made mipmaps since
+	private static void count() {
+		size = 0;
+		for (Entry entry : entries.values())
+			size += entry.texture.getSizeInBytes();
+	}
+	
+	private static final class Entry {
+		final long modified;
+		final ImageTexture texture; // Never handed out, users get their own looking at its texels
+		final ArrayList<WeakReference<ImageTexture>> users = new ArrayList<WeakReference<ImageTexture>>(); // Weak so they can be freed
+		
+		Entry(long modified, ImageTexture texture) {
+			this.modified = modified;
+			this.texture = texture;
+		}
+		
+		void addUser(ImageTexture texture) {
+			isInUse(); // So loading the file again and again doesn't keep adding to the list
+			users.add(new WeakReference<ImageTexture>(texture));
+		}
+		
+		// Forgets the users that have been freed
+		boolean isInUse() {
+			Iterator<WeakReference<ImageTexture>> iterator = users.iterator();
+			while (iterator.hasNext())
+				if (iterator.next().get() == null)
+					iterator.remove();
+			return !users.isEmpty();
+		}
+	}
+}
@@ -67,6 +67,7 @@ public class Viewport extends Canvas implements MouseWheelListener {
 			ImageTexture floortex = (ImageTexture)model1.texture;
 			floortex.repeatX = 10;
 			floortex.repeatY = 10;
+			floortex.setFilter(ImageTexture.FILTER_TRILINEAR);
 			//model1.shader = shader;
 			
 			model2 = OBJLoader.load(localdir + "/res/glados.obj");
@@ -0,0 +1,16 @@
+package utils;
+
+import java.util.concurrent.ForkJoinPool;
+
+public final class ThreadPool {
+	// One pool for the whole process so subsystems don't fight over cores
+	private static final ForkJoinPool pool = new ForkJoinPool();
+	
+	public static ForkJoinPool get() {
+		return pool;
+	}
+	
+	public static int getThreadCount() {
+		return pool.getParallelism();
+	}
+}
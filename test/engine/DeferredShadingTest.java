@@ -0,0 +1,112 @@
+package engine;
+
+import static engine.Fixtures.*;
+import static engine.Rasterizer.*;
+import static org.junit.Assert.*;
+
+import java.awt.image.DataBufferByte;
+
+import org.junit.Test;
+
+import engine.math.Color;
+import engine.models.Mesh;
+import engine.models.Materials.ColorTexture;
+import engine.models.Materials.Shading.Shader;
+import engine.models.Materials.Shading.Span;
+
+public class DeferredShadingTest {
+	private static final int RED = 0xFFFF0000, GREEN = 0xFF00FF00;
+	
+	// Passes whatever was underneath through, like a shader throwing the pixel away
+	private static final class DiscardShader extends Shader {
+		@Override
+		public void shadeSpan(Span span) {
+			for (int i = 0; i < span.length; i++) {
+				span.sourceColor[i] = span.destinationColor[i];
+				span.sourceDepth[i] = span.destinationDepth[i];
+			}
+		}
+	}
+	
+	// A square facing the camera covering the middle of the screen, at z
+	private static Mesh square(float z, int argb) {
+		float[] positions = { -1, -1, z, 1, -1, z, 1, 1, z, -1, 1, z };
+		float[] uvs = new float[12];
+		int[] indices = { 0, 1, 2, 0, 2, 3 };
+		return new Mesh(positions, uvs, indices, new ColorTexture(new Color(argb)));
+	}
+	
+	private static int centre(Rasterizer rasterizer) {
+		return pixels(rasterizer)[(SIZE / 2) * SIZE + SIZE / 2];
+	}
+	
+	@Test
+	public void texturedSurfacesBlendAsTheyWereDrawn() {
+		Camera camera = camera();
+		Rasterizer forward = rasterizer(), deferred = rasterizer();
+		for (Rasterizer rasterizer : new Rasterizer[] { forward, deferred }) {
+			rasterizer.render(square(2, 0xFF200000), camera);
+			if (rasterizer == deferred)
+				rasterizer.enable(GL_DEFERRED);
+			rasterizer.setBlendFunction(GL_FUNC_ADD);
+			rasterizer.render(square(0, 0xFF002000), camera);
+			rasterizer.setBlendFunction(GL_FUNC_SET); // Before the deferred one resolves
+			rasterizer.swapBuffers();
+		}
+		
+		assertEquals(0xFF202000, centre(forward));
+		assertEquals(centre(forward), centre(deferred));
+	}
+	
+	@Test
+	public void discardingShaderShowsColourAndDepthFromBeforeDeferredSurfaces() {
+		Camera camera = camera();
+		Rasterizer reference = rasterizer(), deferred = rasterizer();
+		reference.render(square(2, RED), camera);
+		reference.swapBuffers();
+		
+		deferred.render(square(2, RED), camera);
+		deferred.enable(GL_DEFERRED);
+		Mesh near = square(0, GREEN);
+		near.shader = new DiscardShader();
+		deferred.render(near, camera);
+		deferred.swapBuffers();
+		
+		assertEquals(RED, centre(deferred));
+		byte[] referencedepth = ((DataBufferByte)reference.getDepthBuffer(camera).getRaster().getDataBuffer()).getData();
+		byte[] deferreddepth = ((DataBufferByte)deferred.getDepthBuffer(camera).getRaster().getDataBuffer()).getData();
+		assertTrue("Depth is what was under the discarded surface", java.util.Arrays.equals(referencedepth, deferreddepth));
+	}
+	
+	@Test
+	public void depthMovedByResolveIsSeenByTheDepthHierarchy() {
+		Camera camera = camera();
+		Rasterizer rasterizer = rasterizer();
+		rasterizer.enable(GL_DEPTH_HIERARCHY | GL_DEFERRED);
+		Mesh near = square(0, GREEN);
+		near.shader = new DiscardShader();
+		rasterizer.render(near, camera);
+		rasterizer.render(square(4, GREEN), camera); // Behind, so the hierarchy catches up with the near square's depth
+		rasterizer.resolve();
+		rasterizer.disable(GL_DEFERRED);
+		
+		// The near square was thrown away, so nothing is in front of this one any more
+		rasterizer.render(square(2, RED), camera);
+		rasterizer.swapBuffers();
+		assertEquals(RED, centre(rasterizer));
+	}
+	
+	// Only one surface is kept per pixel, so blending over another deferred surface blends with what was under both
+	@Test
+	public void blendingOverADeferredSurfaceSeesWhatWasUnderBoth() {
+		Camera camera = camera();
+		Rasterizer rasterizer = rasterizer();
+		rasterizer.enable(GL_DEFERRED);
+		rasterizer.render(square(2, 0xFF200000), camera);
+		rasterizer.setBlendFunction(GL_FUNC_ADD);
+		rasterizer.render(square(0, 0xFF002000), camera);
+		rasterizer.swapBuffers();
+		
+		assertEquals(0xFF002000, centre(rasterizer));
+	}
+}
@@ -0,0 +1,73 @@
+package engine;
+
+import static engine.Rasterizer.*;
+
+import java.awt.image.DataBufferInt;
+
+import engine.math.Color;
+import engine.models.Mesh;
+import engine.models.Materials.ColorTexture;
+
+// Cameras, rasterizers and meshes the tests draw with
+final class Fixtures {
+	static final int SIZE = 64;
+	static final float FOV = 0.9f, DISTANCE = 5;
+	
+	private Fixtures() {}
+	
+	// distance back along z from the origin, looking at it
+	static Camera camera(int width, int height, float distance, float znear, float zfar) {
+		Camera camera = new Camera(FOV, width, height, znear, zfar);
+		camera.setPosition(0, 0, -distance);
+		camera.setTarget(0, 0, 0);
+		return camera;
+	}
+	static Camera camera() {
+		return camera(SIZE, SIZE, DISTANCE, 1f, 20f);
+	}
+	
+	// Cleared to black
+	static Rasterizer rasterizer(int width, int height) {
+		Rasterizer rasterizer = new Rasterizer(width, height);
+		rasterizer.setClearColor(0xFF000000);
+		rasterizer.clear(GL_BUFFER | GL_DEPTH);
+		return rasterizer;
+	}
+	static Rasterizer rasterizer() {
+		return rasterizer(SIZE, SIZE);
+	}
+	
+	// What's been swapped to the framebuffer
+	static int[] pixels(Rasterizer rasterizer) {
+		return ((DataBufferInt)rasterizer.getFrameBuffer().getRaster().getDataBuffer()).getData();
+	}
+	
+	// Rings of quads around the y axis, with a radius of 1. Enough of them make several clusters
+	static Mesh sphere(int rings, int segments) {
+		float[] positions = new float[(rings + 1) * (segments + 1) * 3];
+		for (int ring = 0; ring <= rings; ring++) {
+			double latitude = Math.PI * ring / rings;
+			for (int segment = 0; segment <= segments; segment++) {
+				double longitude = 2 * Math.PI * segment / segments;
+				int i = (ring * (segments + 1) + segment) * 3;
+				positions[i] = (float)(Math.sin(latitude) * Math.cos(longitude));
+				positions[i + 1] = (float)Math.cos(latitude);
+				positions[i + 2] = (float)(Math.sin(latitude) * Math.sin(longitude));
+			}
+		}
+		
+		int[] indices = new int[rings * segments * 6];
+		int n = 0;
+		for (int ring = 0; ring < rings; ring++) {
+			for (int segment = 0; segment < segments; segment++) {
+				int
+				a = ring * (segments + 1) + segment,
+				b = a + segments + 1;
+				indices[n++] = a; indices[n++] = a + 1; indices[n++] = b;
+				indices[n++] = a + 1; indices[n++] = b + 1; indices[n++] = b;
+			}
+		}
+		
+		return new Mesh(positions, new float[indices.length * 2], indices, new ColorTexture(new Color(0xFFFFFFFF)));
+	}
+}
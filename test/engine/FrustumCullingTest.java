@@ -0,0 +1,73 @@
+package engine;
+
+import static engine.Fixtures.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import engine.math.Color;
+import engine.math.Vector3;
+import engine.models.Mesh;
+import engine.models.Materials.ColorTexture;
+
+public class FrustumCullingTest {
+	// How far from the middle of the screen its edges are, at distance from the camera
+	private static float edge(float distance) {
+		return distance * Camera.SCREEN_EXTENT * (float)Math.tan(FOV / 2);
+	}
+	
+	@Test
+	public void boxJustOutsideTheScreenEdgeIsCulled() {
+		Camera camera = camera();
+		float 
+		depth = 0.1f,
+		outside = edge(DISTANCE + depth) + 0.02f;
+		
+		// Right, left, top, bottom
+		float[] sides = { 1, 0, -1, 0, 0, 1, 0, -1 };
+		for (int i = 0; i < sides.length; i += 2) {
+			Vector3 
+			near = new Vector3(sides[i] * outside, sides[i+1] * outside, -depth),
+			far = new Vector3(sides[i] * (outside + 0.5f), sides[i+1] * (outside + 0.5f), depth),
+			min = new Vector3(Math.min(near.x, far.x), Math.min(near.y, far.y), near.z),
+			max = new Vector3(Math.max(near.x, far.x), Math.max(near.y, far.y), far.z);
+			if (sides[i] == 0) {
+				min.x = -0.2f;
+				max.x = 0.2f;
+			} else {
+				min.y = -0.2f;
+				max.y = 0.2f;
+			}
+			
+			assertFalse(camera.frustum.intersectsBox(min, max));
+		}
+	}
+	
+	@Test
+	public void boxJustInsideTheScreenEdgeIsKept() {
+		Camera camera = camera();
+		float inside = edge(DISTANCE) - 0.02f;
+		
+		assertTrue(camera.frustum.intersectsBox(new Vector3(inside, -0.2f, 0), new Vector3(inside + 0.5f, 0.2f, 0)));
+		assertTrue(camera.frustum.intersectsBox(new Vector3(-0.2f, -inside - 0.5f, 0), new Vector3(0.2f, -inside, 0)));
+	}
+	
+	// The planes have to agree with where the rasterizer puts things, a square over the top edge should reach the top row
+	@Test
+	public void squareOverTheScreenEdgeIsDrawnToIt() {
+		float 
+		bottom = edge(DISTANCE) - 0.2f,
+		top = edge(DISTANCE) + 0.2f;
+		float[] positions = { -0.2f, bottom, 0, 0.2f, bottom, 0, 0.2f, top, 0, -0.2f, top, 0 };
+		int[] indices = { 0, 1, 2, 0, 2, 3 };
+		Mesh square = new Mesh(positions, new float[12], indices, new ColorTexture(new Color(0xFFFFFFFF)));
+		
+		Rasterizer rasterizer = rasterizer();
+		rasterizer.render(square, camera());
+		rasterizer.swapBuffers();
+		
+		int[] pixels = pixels(rasterizer);
+		assertEquals(0xFFFFFFFF, pixels[SIZE / 2]);
+		assertEquals(0xFF000000, pixels[(SIZE - 1) * SIZE + SIZE / 2]);
+	}
+}
@@ -0,0 +1,87 @@
+package engine;
+
+import static engine.Fixtures.*;
+import static engine.Rasterizer.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import engine.math.Matrix;
+import engine.models.Mesh;
+
+public class InstancedRenderingTest {
+	private static final int WIDTH = 160, HEIGHT = 120;
+	
+	// Rotated, stretched and mirrored instances, some across the edges of the screen
+	private static Matrix[] matrices() {
+		Matrix[] matrices = new Matrix[24];
+		for (int i = 0; i < matrices.length; i++) {
+			float 
+			sx = (i % 3 == 0) ? -1 : 1,
+			sy = 1 + (i % 4) * 0.3f;
+			matrices[i] = Matrix.scaling(sx * 0.8f, sy * 0.8f, 0.8f)
+					.multiply(Matrix.RotationYawPitchRoll(i * 0.7f, i * 0.3f, i * 0.2f))
+					.multiply(Matrix.translation((i % 6) * 2.2f - 5.5f, (i / 6) * 2 - 3, 4 + (i % 5)));
+		}
+		return matrices;
+	}
+	
+	private static int[] render(int cullmode, boolean instanced, boolean parallel) {
+		Rasterizer rasterizer = rasterizer(WIDTH, HEIGHT);
+		rasterizer.enable(GL_CULL_FACE);
+		rasterizer.cullFace(cullmode);
+		if (parallel)
+			rasterizer.enable(GL_PARALLEL);
+		
+		Mesh mesh = sphere(24, 48);
+		Camera camera = camera(WIDTH, HEIGHT, 4, 1f, 30f);
+		if (instanced) {
+			rasterizer.renderInstanced(mesh, matrices(), camera);
+		} else {
+			for (Matrix matrix : matrices()) {
+				Mesh copy = new Mesh(mesh);
+				copy.transform(matrix);
+				rasterizer.render(copy, camera);
+			}
+		}
+		rasterizer.swapBuffers();
+		
+		return pixels(rasterizer).clone();
+	}
+	
+	@Test
+	public void instancesMatchMeshesDrawnOneByOne() {
+		assertTrue(sphere(24, 48).getNumClusters() > 1);
+		
+		for (int cullmode : new int[] { GL_BACK, GL_FRONT }) {
+			int[] expected = render(cullmode, false, false);
+			assertArrayEquals(expected, render(cullmode, true, false));
+			assertArrayEquals(expected, render(cullmode, true, true));
+		}
+	}
+	
+	@Test
+	public void meshesDrawnInTurnKeepTheirInstances() {
+		Rasterizer rasterizer = rasterizer(WIDTH, HEIGHT);
+		Mesh 
+		tree = sphere(24, 48),
+		rock = sphere(6, 12);
+		Camera camera = camera(WIDTH, HEIGHT, 4, 1f, 30f);
+		rasterizer.renderInstanced(tree, matrices(), camera);
+		rasterizer.renderInstanced(rock, matrices(), camera);
+		Instance[] 
+		trees = rasterizer.getInstances(tree, 1),
+		rocks = rasterizer.getInstances(rock, 1);
+		Mesh treemesh = trees[0].mesh, rockmesh = rocks[0].mesh;
+		
+		for (int i = 0; i < 3; i++) {
+			rasterizer.renderInstanced(tree, matrices(), camera);
+			rasterizer.renderInstanced(rock, matrices(), camera);
+		}
+		
+		assertSame(trees, rasterizer.getInstances(tree, 1));
+		assertSame(rocks, rasterizer.getInstances(rock, 1));
+		assertSame(treemesh, trees[0].mesh);
+		assertSame(rockmesh, rocks[0].mesh);
+	}
+}
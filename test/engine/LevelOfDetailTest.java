@@ -0,0 +1,64 @@
+package engine;
+
+import static engine.Fixtures.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import engine.math.Matrix;
+import engine.math.Vector3;
+import engine.models.Mesh;
+
+public class LevelOfDetailTest {
+	private static final int WIDTH = 320, HEIGHT = 240;
+	private static final float LIMIT = 1; // Pixels
+	
+	// Measured by projecting the nearest point of the mesh's sphere and one error away from it across the view, then scaling to the screen
+	private static double errorInPixels(Mesh mesh, int level, Camera camera) {
+		Vector3 
+		eye = camera.getPosition(),
+		direction = Vector3.subtract(mesh.worldboundscentre, eye);
+		direction.normalize();
+		float distance = (float)camera.getDistanceToCamera(mesh.worldboundscentre) - mesh.worldboundsradius;
+		float error = mesh.getLevelOfDetailError(level) * mesh.worldmatrix.getMaxScale();
+		Vector3 
+		near = new Vector3(eye.x + direction.x * distance, eye.y + direction.y * distance, eye.z + direction.z * distance),
+		across = new Vector3(near.x, near.y + error, near.z);
+		
+		Matrix viewprojection = Matrix.multiply(camera.viewMatrix, camera.projectionMatrix);
+		Vector3 
+		a = Matrix.transformCoordinates(near, viewprojection),
+		b = Matrix.transformCoordinates(across, viewprojection);
+		return Math.abs(b.y - a.y) * HEIGHT;
+	}
+	
+	@Test
+	public void chosenLevelIsTheSimplestWithinTheLimit() {
+		Mesh mesh = sphere(48, 96);
+		mesh.generateLevelsOfDetail(4);
+		assertTrue(mesh.getNumLevelsOfDetail() > 2);
+		
+		Rasterizer rasterizer = rasterizer(WIDTH, HEIGHT);
+		rasterizer.setLevelOfDetailError(LIMIT);
+		Camera camera = camera(WIDTH, HEIGHT, 2, 0.5f, 1000f);
+		
+		int levelsused = 0, last = -1;
+		for (float distance = 2; distance < 500; distance *= 1.1f) {
+			camera.setPosition(0, 0, -distance);
+			mesh.update();
+			
+			Mesh chosen = rasterizer.getLevelOfDetail(mesh, camera);
+			int level = 0;
+			while (mesh.getLevelOfDetail(level) != chosen)
+				level++;
+			if (level != last)
+				levelsused++;
+			last = level;
+			
+			assertTrue(errorInPixels(mesh, level, camera) <= LIMIT * 1.001);
+			if (level + 1 < mesh.getNumLevelsOfDetail())
+				assertTrue(errorInPixels(mesh, level + 1, camera) > LIMIT * 0.999);
+		}
+		assertTrue(levelsused > 2);
+	}
+}
@@ -0,0 +1,58 @@
+package engine;
+
+import static engine.Fixtures.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import engine.math.Color;
+import engine.math.Vector3;
+import engine.models.Mesh;
+import engine.models.Materials.ColorTexture;
+
+public class SceneUpdateTest {
+	private static Mesh box() {
+		float[] positions = { 
+				-1, -1, -1, 1, -1, -1, 1, 1, -1, -1, 1, -1,
+				-1, -1, 1, 1, -1, 1, 1, 1, 1, -1, 1, 1 
+			};
+		int[] indices = { 
+				0, 1, 2, 0, 2, 3, 5, 4, 7, 5, 7, 6, 4, 0, 3, 4, 3, 7,
+				1, 5, 6, 1, 6, 2, 3, 2, 6, 3, 6, 7, 4, 5, 1, 4, 1, 0 
+			};
+		return new Mesh(positions, new float[72], indices, new ColorTexture(new Color(0xFFFFFFFF)));
+	}
+	
+	@Test
+	public void meshesOffScreenOnlyHaveTheirBoundsMoved() {
+		Mesh mesh = box();
+		Scene scene = new Scene();
+		scene.add(mesh);
+		float[] before = mesh.worldpositions.clone();
+		
+		mesh.setPosition(0, 50, 0);
+		rasterizer().render(scene, camera());
+		
+		assertArrayEquals(before, mesh.worldpositions, 0);
+		assertEquals(50, mesh.worldboundscentre.y, 1e-4f);
+		
+		// Back in view it's moved before being drawn
+		mesh.setPosition(0, 0.5f, 0);
+		rasterizer().render(scene, camera());
+		assertEquals(-0.5f, mesh.worldpositions[1], 1e-4f);
+	}
+	
+	@Test
+	public void worldBoxHoldsEveryVertex() {
+		Mesh mesh = box();
+		mesh.setPosition(2, -1, 3);
+		mesh.setRotation(new Vector3(0.3f, 1.1f, -0.7f));
+		mesh.update();
+		
+		for (int i = 0; i < mesh.getNumVertcies() * 3; i += 3) {
+			assertTrue(mesh.worldpositions[i] >= mesh.worldboundsmin.x && mesh.worldpositions[i] <= mesh.worldboundsmax.x);
+			assertTrue(mesh.worldpositions[i+1] >= mesh.worldboundsmin.y && mesh.worldpositions[i+1] <= mesh.worldboundsmax.y);
+			assertTrue(mesh.worldpositions[i+2] >= mesh.worldboundsmin.z && mesh.worldpositions[i+2] <= mesh.worldboundsmax.z);
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package engine.models.Materials;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class ImageTextureTest {
+	private static BufferedImage image(int width, int height) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				image.setRGB(x, y, 0xFF000000 | (x * 16) << 8 | y * 16);
+		return image;
+	}
+	
+	@Test
+	public void loadedTexturesOnlyGetMipmapsOnceFiltered() throws Exception {
+		File file = File.createTempFile("texture", ".png");
+		file.deleteOnExit();
+		ImageIO.write(image(16, 8), "png", file);
+		
+		ImageTexture texture = new ImageTexture(file.getPath());
+		assertEquals(1, texture.getNumMipmaps());
+		assertEquals(16 * 8 * 4, texture.getSizeInBytes());
+		
+		texture.setFilter(ImageTexture.FILTER_NEAREST);
+		assertEquals(1, texture.getNumMipmaps());
+		
+		texture.setFilter(ImageTexture.FILTER_TRILINEAR);
+		assertEquals(5, texture.getNumMipmaps());
+		assertEquals((16 * 8 + 8 * 4 + 4 * 2 + 2 + 1) * 4, texture.getSizeInBytes());
+	}
+	
+	@Test
+	public void negativeCoordinatesMirrorPositiveOnes() throws Exception {
+		for (int width : new int[] { 16, 12 }) {
+			ImageTexture texture = new ImageTexture(image(width, 8));
+			texture.setFilter(ImageTexture.FILTER_BILINEAR);
+			for (float u = 0.01f; u < 3; u += 0.1f) {
+				for (float v = 0.01f; v < 3; v += 0.1f) {
+					assertEquals(texture.mapARGB(u, v), texture.mapARGB(-u, -v));
+					assertEquals(texture.mapARGB(u, v, 0), texture.mapARGB(-u, -v, 0));
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void coordinatesTooBigForAnIntStayInTheTexture() throws Exception {
+		for (int width : new int[] { 16, 12 }) {
+			ImageTexture texture = new ImageTexture(image(width, 8));
+			texture.setFilter(ImageTexture.FILTER_BILINEAR);
+			texture.setXOffset(5);
+			float[] coordinates = { 3e9f, -3e9f, 1e30f, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NaN, -1e-9f };
+			for (float u : coordinates) {
+				texture.mapARGB(u, u);
+				texture.mapARGB(u, 0.5f, 0);
+				texture.mapARGB(0.5f, u, 1);
+			}
+			// Without a mask to keep them in range, nothing is left of a repeat so they're the same as 0
+			if (width == 12)
+				assertEquals(texture.mapARGB(0, 0), texture.mapARGB(Float.NaN, Float.POSITIVE_INFINITY));
+		}
+	}
+}
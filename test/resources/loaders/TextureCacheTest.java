@@ -0,0 +1,83 @@
+package resources.loaders;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.lang.ref.WeakReference;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import engine.models.Materials.ImageTexture;
+
+public class TextureCacheTest {
+	private static String write(int size) throws Exception {
+		File file = File.createTempFile("texture", ".png");
+		file.deleteOnExit();
+		ImageIO.write(new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB), "png", file);
+		return file.getPath();
+	}
+	
+	@Test
+	public void eachLoadIsSampledItsOwnWay() throws Exception {
+		String path = write(32);
+		ImageTexture floor = TextureCache.load(path);
+		int hits = TextureCache.getHits();
+		ImageTexture wall = TextureCache.load(path);
+		assertEquals(hits + 1, TextureCache.getHits());
+		assertNotSame(floor, wall);
+		
+		floor.repeatX = 10;
+		floor.setXOffset(3);
+		floor.setFilter(ImageTexture.FILTER_TRILINEAR);
+		assertEquals(1, wall.repeatX, 0);
+		assertEquals(ImageTexture.FILTER_NEAREST, wall.getFilter());
+		
+		// The mipmaps are shared though
+		assertEquals(floor.getNumMipmaps(), wall.getNumMipmaps());
+		assertEquals(floor.getSizeInBytes(), wall.getSizeInBytes());
+		
+		floor.setLayout(ImageTexture.LAYOUT_MORTON);
+		assertEquals(ImageTexture.LAYOUT_LINEAR, wall.getLayout());
+	}
+	
+	@Test
+	public void onlyTexturesNothingUsesAreLetGo() throws Exception {
+		String first = write(32), second = write(32);
+		long budget = TextureCache.getBudget();
+		try {
+			TextureCache.setBudget(0);
+			TextureCache.setBudget(32 * 32 * 4);
+			
+			ImageTexture texture = TextureCache.load(first);
+			ImageTexture other = TextureCache.load(second);
+			
+			// Both in use, so both still counted and neither let go of
+			assertTrue(TextureCache.getSize() >= 2 * 32 * 32 * 4);
+			
+			WeakReference<ImageTexture> freed = new WeakReference<ImageTexture>(other);
+			other = null;
+			for (int i = 0; i < 20 && freed.get() != null; i++)
+				System.gc();
+			assertNull(freed.get());
+			
+			// The second was asked for last, but only the first is still in use
+			TextureCache.setBudget(32 * 32 * 4);
+			assertEquals(32 * 32 * 4, TextureCache.getSize());
+			int hits = TextureCache.getHits(), misses = TextureCache.getMisses();
+			TextureCache.load(first);
+			assertEquals(hits + 1, TextureCache.getHits());
+			TextureCache.load(second);
+			assertEquals(misses + 1, TextureCache.getMisses());
+			
+			// Mipmaps made after loading are counted too
+			TextureCache.setBudget(Long.MAX_VALUE);
+			texture.setFilter(ImageTexture.FILTER_BILINEAR);
+			assertEquals(texture.getSizeInBytes() + 32 * 32 * 4, TextureCache.getSize());
+		} finally {
+			TextureCache.setBudget(budget);
+		}
+	}
+}